@@ -10,6 +10,7 @@ import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -18,21 +19,25 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
 
 import androidx.constraintlayout.widget.ConstraintLayout;
-import androidx.exifinterface.media.ExifInterface;
 
 import android.icu.text.SimpleDateFormat;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Rational;
@@ -49,6 +54,9 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.Fragment;
 
+import com.getcapacitor.JSObject;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -60,18 +68,58 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Camera2Fragment extends Fragment {
     public interface Camera2EventListeners {
         void onStart();
-        void onCapture();
+
+        /**
+         * The preview session cannot be configured, the camera won't start.
+         */
+        void onStartFailed(String message);
+
+        /**
+         * The picture has been exposed, the camera is free for the next shot.
+         */
+        void onShutter(PendingCapture capture);
+
+        /**
+         * The picture is encoded in memory and about to be written.
+         */
+        void onJpegAvailable(PendingCapture capture, long size);
+        void onThumbnailWritten(PendingCapture capture, long size);
+
+        /**
+         * The picture has been written and synced to storage, captures resolve at this point.
+         */
+        void onPictureWritten(PendingCapture capture, long size);
+        void onCaptureFailed(int captureId, String message);
+        void onBurstCaptured(PendingBurst burst);
+        void onBurstFailed(String burstId, String message);
         void onPIPSetPosition();
+
+        /**
+         * A capture result shows the sensor running with a control update, and with every update
+         * sent before it.
+         */
+        void onControlsApplied(PendingControls controls, TotalCaptureResult result);
     }
 
     private final Camera2EventListeners eventListeners;
 
+    /**
+     * Where saved pictures are recorded, set once the view is created
+     */
+    private volatile CaptureCatalog mCaptureCatalog;
+
     /**
      * Conversion from screen rotation to JPEG orientation.
      */
@@ -125,6 +173,32 @@ public class Camera2Fragment extends Fragment {
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    /**
+     * How long closing the camera waits for the background thread to release it, in milliseconds
+     */
+    private static final long CLOSE_TIMEOUT_MS = 2_500;
+
+    /**
+     * Images the capture {@link ImageReader} holds at least
+     */
+    private static final int MIN_IMAGES = 2;
+
+    /**
+     * Images the capture {@link ImageReader} can grow to for bursts
+     */
+    private static final int MAX_IMAGES = 8;
+
+    /**
+     * Relative aspect ratio difference under which a picture is considered already framed
+     */
+    private static final float ASPECT_RATIO_TOLERANCE = 0.01f;
+
+    /**
+     * Minimum share of the software-cropped resolution a sensor-cropped JPEG size must keep to be
+     * preferred over cropping the largest size
+     */
+    private static final float SENSOR_CROP_MIN_AREA_RATIO = 0.9f;
+
     /**
      * An {@link AutoFitTextureView} for camera preview.
      */
@@ -258,13 +332,194 @@ public class Camera2Fragment extends Fragment {
     private ImageReader mImageReader;
 
     /**
-     * This is the output file for our picture.
+     * Memory budget of the zero shutter lag ring, in bytes, {@code 0} to disable it.
+     */
+    private long mZslMemoryBudget;
+
+    /**
+     * Whether a session with the zero shutter lag ring failed to configure, it is left out until
+     * the camera is opened again.
+     */
+    private volatile boolean mZslUnsupported;
+
+    /**
+     * Recent full resolution frames for zero shutter lag captures, streamed by the repeating
+     * request.
+     */
+    private ZslRingBuffer mZslRingBuffer;
+
+    /**
+     * Feeds ring frames back to the camera for reprocessing, reprocessable sessions only.
+     */
+    private ImageWriter mZslImageWriter;
+
+    /**
+     * Whether sensor timestamps share the {@link SystemClock#elapsedRealtimeNanos()} time base.
+     */
+    private boolean mRealtimeTimestamps;
+
+    /**
+     * Image readers replaced by larger or resized ones, closed once no picture may hold their
+     * images anymore.
+     */
+    private final List<ImageReader> mRetiredImageReaders = new ArrayList<>();
+
+    /**
+     * Captures waiting for their turn to lock focus and exposure, a single capture or the frames
+     * of a burst sharing the same lock.
+     */
+    private final ConcurrentLinkedQueue<List<PendingCapture>> mCaptureQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The captures going through the lock and capture stages, only one group at a time can drive
+     * the 3A state machine.
+     */
+    private volatile List<PendingCapture> mCurrentCaptures;
+
+    /**
+     * Still requests of {@link #mCurrentCaptures} the camera hasn't completed or failed yet.
+     */
+    private int mRemainingShots;
+
+    /**
+     * Whether {@link #mCurrentCaptures} skipped the lock stage, focus and exposure being manual.
+     */
+    private boolean mFastPath;
+
+    /**
+     * Whether AF and AE should be held locked across captures, as requested by
+     * {@link #lock3A(Pending3ALock)}.
      */
-    private File mPicture;
-    private File mThumbnail;
-    private Integer mThumbnailWidth;
-    private Integer mThumbnailHeight;
-    private Integer mThumbnailQuality;
+    private volatile boolean m3ALockRequested;
+
+    /**
+     * Whether AF and AE are reported locked, captures then taking the fast path. Only accessed
+     * from the background thread.
+     */
+    private boolean m3ALocked;
+
+    /**
+     * Whether the repeating request asks for the lock and AF or AE hasn't reported it yet,
+     * captures waiting meanwhile. Only accessed from the background thread.
+     */
+    private boolean m3ALockConverging;
+
+    /**
+     * Start of the convergence, in {@link SystemClock#elapsedRealtime()} milliseconds, and the
+     * budgets of the lock request that started it. Only accessed from the background thread.
+     */
+    private long m3ALockStartedAt;
+    private long m3ALockAfTimeoutMs;
+    private long m3ALockAeTimeoutMs;
+
+    /**
+     * {@link #lock3A(Pending3ALock)} calls waiting for AF and AE to lock.
+     */
+    private final ConcurrentLinkedQueue<Pending3ALock> mPending3ALocks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Holds the lock with whatever AF and AE reached once both budgets have run out, results
+     * may not be coming anymore.
+     */
+    private final Runnable m3ALockDeadline = new Runnable() {
+        @Override
+        public void run() {
+            if (m3ALockConverging) {
+                check3ALock(null);
+            }
+        }
+    };
+
+    /**
+     * Controls submitted with {@link #setManualControls(ManualControls)} whose first frame hasn't
+     * started yet, oldest first.
+     */
+    private final ConcurrentLinkedDeque<ManualControls> mAwaitingControls = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Controls merged since the last repeating request update and the updates waiting on them.
+     */
+    private final ControlsCoalescer mControls = new ControlsCoalescer();
+
+    /**
+     * The latest submitted update not yet reflected by a capture result
+     */
+    private volatile PendingControls mSettlingControls;
+
+    /**
+     * Number of the latest preview frame delivered, only accessed from the background thread
+     */
+    private long mLastPreviewFrameNumber = -1;
+
+    private final AtomicLong mControlUpdates = new AtomicLong();
+    private final AtomicLong mControlsSubmitted = new AtomicLong();
+    private final AtomicLong mControlsCoalesced = new AtomicLong();
+
+    private final Runnable mFlushControls = new Runnable() {
+        @Override
+        public void run() {
+            flushControls();
+        }
+    };
+
+    /**
+     * Start of the current AF or AE lock stage, in {@link SystemClock#elapsedRealtime()}
+     * milliseconds.
+     */
+    private long mLockStageStartedAt;
+
+    /**
+     * Fires the shot once the budget of the current lock stage has run out, results may not be
+     * coming anymore.
+     */
+    private final Runnable mLockDeadline = new Runnable() {
+        @Override
+        public void run() {
+            boolean af = mState == STATE_WAITING_LOCK;
+            if (!af && mState != STATE_WAITING_PRECAPTURE && mState != STATE_WAITING_NON_PRECAPTURE) {
+                return;
+            }
+
+            markLockTimedOut(af);
+            mState = STATE_PICTURE_TAKEN;
+            captureStillPicture();
+        }
+    };
+
+    /**
+     * Captures submitted to the camera, waiting for their image.
+     */
+    private final Set<PendingCapture> mShotCaptures = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pairs still images with their capture results, the request tag telling which capture they
+     * belong to.
+     */
+    private final CaptureResultMatcher<Image, TotalCaptureResult> mCaptureResultMatcher = new CaptureResultMatcher<>(new CaptureResultMatcher.Listener<Image, TotalCaptureResult>() {
+        @Override
+        public void onMatched(Image image, TotalCaptureResult result) {
+            PendingCapture capture = (PendingCapture) result.getRequest().getTag();
+            if (capture == null || !mShotCaptures.remove(capture)) {
+                // Already given up on
+                image.close();
+                return;
+            }
+
+            capture.timings.mark(CaptureTimings.IMAGE_AVAILABLE);
+            EncodeExecutor.getInstance().execute(
+                    EncodeExecutor.PRIORITY_PICTURE,
+                    new ImageSaver(image, capture, result, eventListeners, mCaptureCatalog)
+            );
+        }
+
+        @Override
+        public void onResultDropped(TotalCaptureResult result) {
+            PendingCapture capture = (PendingCapture) result.getRequest().getTag();
+            if (capture != null) {
+                dropShot(capture, "Picture was lost");
+            }
+        }
+    });
 
     /**
      * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
@@ -274,18 +529,10 @@ public class Camera2Fragment extends Fragment {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(
-                    new ImageSaver(
-                            reader.acquireNextImage(),
-                            mPicture,
-                            (float) vfWidth / vfHeight,
-                            mCaptureResult,
-                            mThumbnail,
-                            mThumbnailWidth,
-                            mThumbnailHeight,
-                            mThumbnailQuality
-                    )
-            );
+            Image image = reader.acquireNextImage();
+            if (image != null) {
+                mCaptureResultMatcher.onImage(image, image.getTimestamp());
+            }
         }
 
     };
@@ -322,7 +569,16 @@ public class Camera2Fragment extends Fragment {
      */
     private int mSensorOrientation;
 
-    private CaptureResult mCaptureResult;
+    /**
+     * Whether the sensor coordinates are rotated by 90 or 270 degrees relative to the display
+     */
+    private boolean mSwappedDimensions;
+
+    /**
+     * Whether the JPEG output size is picked to match the viewfinder aspect ratio, so the camera
+     * frames pictures itself and {@link ImageSaver} doesn't have to crop them.
+     */
+    private boolean mSensorCrop;
 
     /**
      * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
@@ -330,7 +586,10 @@ public class Camera2Fragment extends Fragment {
     private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
-            mCaptureResult = result;
+            Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+            if (focusDistance != null) {
+                mFocusDistance = focusDistance;
+            }
 
             switch (mState) {
                 case STATE_PREVIEW: {
@@ -339,9 +598,20 @@ public class Camera2Fragment extends Fragment {
                 }
                 case STATE_WAITING_LOCK: {
                     Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                    boolean afLocked = afState != null && (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState || CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState || seekFocus == -1);
+                    if (afState != null && !afLocked && isLockStageOverdue(true)) {
+                        // Past the AF budget, the shot fires with whatever focus there is
+                        markLockTimedOut(true);
+                        afLocked = true;
+                    }
+                    if (afLocked) {
+                        markStage(CaptureTimings.AF_LOCKED);
+                    }
+
                     if (afState == null) {
+                        mState = STATE_PICTURE_TAKEN;
                         captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState || CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState || seekFocus == -1) {
+                    } else if (afLocked) {
                         // CONTROL_AE_STATE can be null on some devices
                         Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
                         if (
@@ -363,6 +633,10 @@ public class Camera2Fragment extends Fragment {
 
                     if (aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE || aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
                         mState = STATE_WAITING_NON_PRECAPTURE;
+                    } else if (isLockStageOverdue(false)) {
+                        markLockTimedOut(false);
+                        mState = STATE_PICTURE_TAKEN;
+                        captureStillPicture();
                     }
                     break;
                 }
@@ -372,12 +646,27 @@ public class Camera2Fragment extends Fragment {
                     if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
                         mState = STATE_PICTURE_TAKEN;
                         captureStillPicture();
+                    } else if (isLockStageOverdue(false)) {
+                        markLockTimedOut(false);
+                        mState = STATE_PICTURE_TAKEN;
+                        captureStillPicture();
                     }
                     break;
                 }
             }
         }
 
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp,
+                                     long frameNumber) {
+            Object tag = request.getTag();
+            if (tag instanceof ManualControls) {
+                onControlsApplied((ManualControls) tag, frameNumber);
+            }
+        }
+
         @Override
         public void onCaptureProgressed(@NonNull CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
@@ -389,7 +678,33 @@ public class Camera2Fragment extends Fragment {
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
+            ZslRingBuffer ringBuffer = mZslRingBuffer;
+            if (ringBuffer != null) {
+                ringBuffer.onResult(result);
+            }
             process(result);
+            if (m3ALockConverging) {
+                check3ALock(result);
+            }
+
+            mLastPreviewFrameNumber = result.getFrameNumber();
+            PendingControls settling = mSettlingControls;
+            if (settling != null && settling.isReflectedBy(result)) {
+                mSettlingControls = null;
+                eventListeners.onControlsApplied(settling, result);
+            }
+
+            // A frame went through, the latest controls can go out
+            mControls.onFrame();
+            flushControls();
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mControls.onFrame();
+            flushControls();
         }
 
     };
@@ -443,6 +758,11 @@ public class Camera2Fragment extends Fragment {
     }
 
     CameraCharacteristics characteristics;
+
+    /**
+     * Cached characteristics and sizes of the camera in use
+     */
+    private volatile CameraCharacteristicsCache.Entry mCameraEntry;
     private int vfWidth;
     private int vfHeight;
     private float seekFocus = -1;
@@ -451,6 +771,11 @@ public class Camera2Fragment extends Fragment {
     private int seekIso = 1_600;
     private int seekExposureCompensation = 0;
 
+    /**
+     * Focus distance of the latest preview result, the locked one when a still capture starts
+     */
+    private volatile float mFocusDistance = -1;
+
     public Camera2Fragment(Camera2EventListeners eventListeners) {
         this.eventListeners = eventListeners;
     }
@@ -465,6 +790,7 @@ public class Camera2Fragment extends Fragment {
     public void onViewCreated(final View view, Bundle savedInstanceState) {
         mTextureView = view.findViewById(R.id.texture);
         mPIPContainer = view.findViewById(R.id.container);
+        mCaptureCatalog = CaptureCatalog.getInstance(view.getContext());
         disableClipOnParents(view);
     }
     private void disableClipOnParents(View view) {
@@ -533,10 +859,11 @@ public class Camera2Fragment extends Fragment {
         assert activity != null;
 
         CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        CameraCharacteristicsCache cache = CameraCharacteristicsCache.getInstance();
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                characteristics
-                        = manager.getCameraCharacteristics(cameraId);
+            for (String cameraId : cache.getCameraIdList(manager)) {
+                CameraCharacteristicsCache.Entry entry = cache.get(manager, cameraId);
+                characteristics = entry.characteristics;
 
                 // We don't use a front facing camera in this sample.
                 Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
@@ -544,19 +871,12 @@ public class Camera2Fragment extends Fragment {
                     continue;
                 }
 
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
+                if (entry.map == null || entry.largestJpegSize == null) {
                     continue;
                 }
 
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(), ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mBackgroundHandler);
+                // The largest available size drives the preview aspect ratio.
+                Size largest = entry.largestJpegSize;
 
                 // Find out if we need to swap dimension to get the preview size relative to sensor
                 // coordinate.
@@ -580,6 +900,12 @@ public class Camera2Fragment extends Fragment {
                     default:
                         Log.e(TAG, "Display rotation is invalid: " + displayRotation);
                 }
+                mSwappedDimensions = swappedDimensions;
+
+                // For still image captures, we use the largest available size, or the largest one
+                // matching the viewfinder with sensor crop.
+                Size captureSize = chooseCaptureSize(entry.jpegSizes);
+                mImageReader = createImageReader(captureSize, MIN_IMAGES);
 
                 Point displaySize = new Point();
                 activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
@@ -606,15 +932,29 @@ public class Camera2Fragment extends Fragment {
                 // Danger! Attempting to use too large a preview size could  exceed the camera
                 // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
                 // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
+                mPreviewSize = entry.getChosenPreviewSize(rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight);
+                if (mPreviewSize == null) {
+                    mPreviewSize = chooseOptimalSize(entry.previewSizes,
+                            rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
+                            maxPreviewHeight, largest);
+                    entry.putChosenPreviewSize(rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight, mPreviewSize);
+                }
+
+                // The timestamp source is only reported from API 23, assume the worst before
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                    mRealtimeTimestamps = timestampSource != null
+                            && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+                } else {
+                    mRealtimeTimestamps = false;
+                }
 
                 // Check if the flash is supported.
                 Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
                 mFlashSupported = available != null && available;
 
                 mCameraId = cameraId;
+                mCameraEntry = entry;
                 return;
             }
         } catch (CameraAccessException e) {
@@ -623,76 +963,338 @@ public class Camera2Fragment extends Fragment {
     }
 
     /**
-     * Opens the camera specified by {@link Camera2Fragment#mCameraId}.
+     * Chooses the size of still image captures. This is the largest available size unless sensor
+     * crop is enabled, in which case the largest size matching the viewfinder aspect ratio is
+     * preferred, provided it doesn't lose resolution compared to cropping the largest size.
+     *
+     * @param choices The JPEG output sizes supported by the camera
+     * @return The capture size, relative to sensor coordinates
      */
-    @SuppressWarnings({"CallToPrintStackTrace", "MissingPermission"})
-    private void openCamera(int width, int height) {
-        if (requestCameraPermission()) return;
+    private Size chooseCaptureSize(Size[] choices) {
+        Size largest = Collections.max(Arrays.asList(choices), new CompareSizesByArea());
+        if (!mSensorCrop || vfWidth <= 0 || vfHeight <= 0) {
+            return largest;
+        }
 
-        setUpCameraOutputs(width, height);
-        configureViewFinderTransform(width, height);
+        // The viewfinder is in display coordinates
+        float ratio = mSwappedDimensions ? (float) vfHeight / vfWidth : (float) vfWidth / vfHeight;
 
-        /*
-         * Delay the opening of the camera until (hopefully) layout has been fully settled.
-         * Otherwise there is a chance the preview will be distorted (tested on Sony Xperia Z3 Tablet Compact).
-         */
-        mTextureView.post(new Runnable() {
+        List<Size> matching = new ArrayList<>();
+        for (Size option : choices) {
+            if (matchesAspectRatio(option.getWidth(), option.getHeight(), ratio)) {
+                matching.add(option);
+            }
+        }
+        if (matching.isEmpty()) {
+            Log.w(TAG, "No capture size matches the viewfinder aspect ratio, pictures will be cropped in software");
+            return largest;
+        }
+
+        Size best = Collections.max(matching, new CompareSizesByArea());
+        long croppedArea = Math.min(
+                (long) largest.getWidth() * (long) (largest.getWidth() / ratio),
+                (long) (largest.getHeight() * ratio) * largest.getHeight()
+        );
+        if ((long) best.getWidth() * best.getHeight() < croppedArea * SENSOR_CROP_MIN_AREA_RATIO) {
+            Log.w(TAG, "Capture sizes matching the viewfinder aspect ratio are too small, pictures will be cropped in software");
+            return largest;
+        }
+
+        return best;
+    }
+
+    private ImageReader createImageReader(Size size, int maxImages) {
+        ImageReader imageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.JPEG, maxImages);
+        imageReader.setOnImageAvailableListener(mOnImageAvailableListener, mBackgroundHandler);
+
+        return imageReader;
+    }
+
+    /**
+     * Swaps the capture {@link ImageReader} for a new one and reconfigures the session around
+     * it. Queued captures start again once the session is configured.
+     */
+    private void replaceImageReader(Size size, int maxImages) {
+        mRetiredImageReaders.add(mImageReader);
+        mImageReader = createImageReader(size, maxImages);
+        createCameraPreviewSession();
+    }
+
+    /**
+     * Closes replaced image readers, provided no picture being saved may still hold one of their
+     * images. Runs on the background thread.
+     */
+    private void closeRetiredImageReaders() {
+        if (mRetiredImageReaders.isEmpty()) {
+            return;
+        }
+        if (!mShotCaptures.isEmpty() || EncodeExecutor.getInstance().getPendingPictures() > 0) {
+            return;
+        }
+
+        for (ImageReader imageReader : mRetiredImageReaders) {
+            imageReader.close();
+        }
+        mRetiredImageReaders.clear();
+    }
+
+    /**
+     * Recreates the capture {@link ImageReader} and session if the capture size no longer fits
+     * the viewfinder, sensor crop only.
+     */
+    private void reconfigureCaptureSize() {
+        if (!mSensorCrop || mCameraDevice == null || mBackgroundHandler == null || characteristics == null) {
+            return;
+        }
+
+        mBackgroundHandler.post(new Runnable() {
             @Override
             public void run() {
-                /*
-                 * Carry out the camera opening in a background thread so it does not cause lag
-                 * to any potential running animation.
-                 */
-                mBackgroundHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        CameraManager manager = (CameraManager) requireContext().getSystemService(Context.CAMERA_SERVICE);
+                if (mCameraDevice == null || mImageReader == null) {
+                    return;
+                }
 
-                        try {
-                            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                                throw new RuntimeException("Time out waiting to lock camera opening.");
-                            }
-                            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-                        } catch (CameraAccessException e) {
-                            e.printStackTrace();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
-                        }
-                    }
-                });
+                CameraCharacteristicsCache.Entry entry = mCameraEntry;
+                if (entry == null || entry.jpegSizes.length == 0) {
+                    return;
+                }
+
+                Size captureSize = chooseCaptureSize(entry.jpegSizes);
+                if (captureSize.getWidth() == mImageReader.getWidth() && captureSize.getHeight() == mImageReader.getHeight()) {
+                    return;
+                }
+
+                replaceImageReader(captureSize, mImageReader.getMaxImages());
             }
         });
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Whether a size matches an aspect ratio, within {@link #ASPECT_RATIO_TOLERANCE}.
      */
-    private void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
+    static boolean matchesAspectRatio(int width, int height, float ratio) {
+        if (width <= 0 || height <= 0 || ratio <= 0) {
+            return false;
         }
+
+        return Math.abs((float) width / height - ratio) / ratio < ASPECT_RATIO_TOLERANCE;
     }
 
-    public void setViewFinderSize(int width, int height) {
-        vfWidth = width;
+    public void setSensorCrop(boolean sensorCrop) {
+        mSensorCrop = sensorCrop;
+    }
+
+    /**
+     * Enables zero shutter lag captures, keeping as many recent frames as fit in the budget.
+     * Applies to the next session.
+     *
+     * @param memoryBudget In bytes, {@code 0} disables it
+     */
+    public void setZslMemoryBudget(long memoryBudget) {
+        mZslMemoryBudget = Math.max(0, memoryBudget);
+    }
+
+    private boolean isPrivateReprocessingSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates the zero shutter lag ring at the largest size the camera can reprocess, or stream
+     * as YUV if it cannot reprocess.
+     *
+     * @return {@code null} if neither is available
+     */
+    private ZslRingBuffer createZslRingBuffer() {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return null;
+        }
+
+        if (isPrivateReprocessingSupported()) {
+            Size[] inputSizes = map.getInputSizes(ImageFormat.PRIVATE);
+            if (inputSizes != null && inputSizes.length > 0) {
+                Size size = Collections.max(Arrays.asList(inputSizes), new CompareSizesByArea());
+                return new ZslRingBuffer(size, ImageFormat.PRIVATE, mZslMemoryBudget, mBackgroundHandler);
+            }
+        }
+
+        // Without reprocessing, a YUV stream is only guaranteed alongside the preview and a
+        // full size JPEG up to the preview size
+        Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        List<Size> guaranteed = new ArrayList<>();
+        if (yuvSizes != null) {
+            for (Size option : yuvSizes) {
+                if (option.getWidth() <= MAX_PREVIEW_WIDTH && option.getHeight() <= MAX_PREVIEW_HEIGHT) {
+                    guaranteed.add(option);
+                }
+            }
+        }
+        if (guaranteed.isEmpty()) {
+            Log.w(TAG, "Zero shutter lag is not supported by this camera");
+            return null;
+        }
+
+        Size size = Collections.max(guaranteed, new CompareSizesByArea());
+        Log.d(TAG, "Zero shutter lag frames are streamed as " + size + " YUV, the camera cannot reprocess them");
+        return new ZslRingBuffer(size, ImageFormat.YUV_420_888, mZslMemoryBudget, mBackgroundHandler);
+    }
+
+    /**
+     * Opens the camera specified by {@link Camera2Fragment#mCameraId}.
+     */
+    @SuppressWarnings({"CallToPrintStackTrace", "MissingPermission"})
+    private void openCamera(int width, int height) {
+        if (requestCameraPermission()) return;
+
+        setUpCameraOutputs(width, height);
+        configureViewFinderTransform(width, height);
+
+        /*
+         * Delay the opening of the camera until (hopefully) layout has been fully settled.
+         * Otherwise there is a chance the preview will be distorted (tested on Sony Xperia Z3 Tablet Compact).
+         */
+        mTextureView.post(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Carry out the camera opening in a background thread so it does not cause lag
+                 * to any potential running animation.
+                 */
+                mBackgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        CameraManager manager = (CameraManager) requireContext().getSystemService(Context.CAMERA_SERVICE);
+
+                        try {
+                            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
+                                throw new RuntimeException("Time out waiting to lock camera opening.");
+                            }
+                            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+                        } catch (CameraAccessException e) {
+                            e.printStackTrace();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Closes the current {@link CameraDevice}.
+     */
+    private void closeCamera() {
+        try {
+            mCameraOpenCloseLock.acquire();
+
+            // The capture state is only ever changed from the background thread
+            Handler handler = mBackgroundHandler;
+            if (handler == null || Looper.myLooper() == handler.getLooper()) {
+                releaseCamera();
+                return;
+            }
+
+            final CountDownLatch released = new CountDownLatch(1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        releaseCamera();
+                    } finally {
+                        released.countDown();
+                    }
+                }
+            });
+            if (!released.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for the camera to close");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * Fails pending captures and closes the session, the camera and their outputs, runs on the
+     * background thread while it is running.
+     */
+    private void releaseCamera() {
+        failPendingCaptures("Camera closed");
+        m3ALockRequested = false;
+        m3ALockConverging = false;
+        if (mBackgroundHandler != null) {
+            mBackgroundHandler.removeCallbacks(m3ALockDeadline);
+        }
+        Pending3ALock lock;
+        while ((lock = mPending3ALocks.poll()) != null) {
+            lock.onFailed("Camera closed");
+        }
+        mZslUnsupported = false;
+        ManualControls controls;
+        while ((controls = mAwaitingControls.poll()) != null) {
+            controls.onFailed("Camera closed");
+        }
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (null != mCameraDevice) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (null != mZslImageWriter) {
+            mZslImageWriter.close();
+            mZslImageWriter = null;
+        }
+        mCaptureResultMatcher.clear();
+
+        // Pictures still being saved read straight from their images, the readers are
+        // closed once they are all released
+        final List<ImageReader> imageReaders = new ArrayList<>(mRetiredImageReaders);
+        mRetiredImageReaders.clear();
+        if (null != mImageReader) {
+            imageReaders.add(mImageReader);
+            mImageReader = null;
+        }
+        final ZslRingBuffer ringBuffer = mZslRingBuffer;
+        mZslRingBuffer = null;
+        EncodeExecutor.getInstance().whenPicturesReleased(new Runnable() {
+            @Override
+            public void run() {
+                if (null != ringBuffer) {
+                    ringBuffer.close();
+                }
+                for (ImageReader imageReader : imageReaders) {
+                    imageReader.close();
+                }
+            }
+        });
+    }
+
+    public void setViewFinderSize(int width, int height) {
+        boolean ratioChanged = (long) width * vfHeight != (long) height * vfWidth;
+        vfWidth = width;
         vfHeight = height;
         setTextureViewSize(mTextureView, width, height);
+
+        if (ratioChanged) {
+            reconfigureCaptureSize();
+        }
     }
 
     public void setPIPSize(int width, int height) {
@@ -757,38 +1359,63 @@ public class Camera2Fragment extends Fragment {
         }
     }
 
-    public void setFocus(float focus) {
-        seekFocus = focus;
-        setCaptureBuilderFocus(mPreviewRequestBuilder);
+    /**
+     * Whether the manual controls allow a bracket of the given type: exposure and ISO brackets
+     * need manual exposure, focus brackets a lens that can focus.
+     *
+     * @param type One of the {@code PendingCapture.BRACKET_*} constants
+     */
+    public boolean canBracket(int type) {
+        switch (type) {
+            case PendingCapture.BRACKET_EXPOSURE:
+            case PendingCapture.BRACKET_ISO:
+                return seekSs >= 0 && seekIso >= 0;
+            case PendingCapture.BRACKET_FOCUS:
+                Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+                return minimumFocusDistance != null && minimumFocusDistance > 0;
+            default:
+                return false;
+        }
+    }
+
+    public long setFocus(float focus) {
+        ManualControls controls = new ManualControls(null);
+        controls.focus = focus;
+        return setManualControls(controls);
+    }
+
+    public float getMinimumFocusDistance() {
+        Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        return minimumFocusDistance != null ? minimumFocusDistance : 0;
     }
 
     public Range<Long> getShutterSpeedRange() {
         return characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
     }
-    public void setShutterSpeed(long shutterSpeed) {
-        seekSs = shutterSpeed;
-        setCaptureBuilderSs(mPreviewRequestBuilder);
-        setRepeatingRequest();
+    public long setShutterSpeed(long shutterSpeed) {
+        ManualControls controls = new ManualControls(null);
+        controls.shutterSpeed = shutterSpeed;
+        return setManualControls(controls);
     }
 
     public float[] getApertureRange() {
         return characteristics.get(CameraCharacteristics.LENS_INFO_AVAILABLE_APERTURES);
     }
 
-    public void setAperture(float aperture) {
-        seekAperture = aperture;
-        setCaptureBuilderAperture(mPreviewRequestBuilder);
-        setRepeatingRequest();
+    public long setAperture(float aperture) {
+        ManualControls controls = new ManualControls(null);
+        controls.aperture = aperture;
+        return setManualControls(controls);
     }
 
     public Range<Integer> getIsoRange() {
         return characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
     }
 
-    public void setIso(int iso) {
-        seekIso = iso;
-        setCaptureBuilderIso(mPreviewRequestBuilder);
-        setRepeatingRequest();
+    public long setIso(int iso) {
+        ManualControls controls = new ManualControls(null);
+        controls.iso = iso;
+        return setManualControls(controls);
     }
 
     public Range<Integer> getExposureCompensationRange() {
@@ -799,31 +1426,518 @@ public class Camera2Fragment extends Fragment {
         return characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
     }
 
-    public void setExposureCompensation(int exposureCompensation) {
-        seekExposureCompensation = exposureCompensation;
+    public long setExposureCompensation(int exposureCompensation) {
+        ManualControls controls = new ManualControls(null);
+        controls.exposureCompensation = exposureCompensation;
+        return setManualControls(controls);
+    }
+
+    /**
+     * Applies several controls at once with a single repeating request, instead of one per
+     * control. Updates coming faster than frames are merged, at most one repeating request update
+     * going out per delivered frame with the latest values. The controls listener is told of the
+     * first frame exposed with them, {@link Camera2EventListeners#onControlsApplied} of the first
+     * result showing them.
+     *
+     * @return The sequence number of the update, -1 if the camera isn't running
+     */
+    public long setManualControls(ManualControls controls) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null) {
+            return -1;
+        }
+
+        boolean flush;
+        synchronized (mControls) {
+            // Sequences grow in the order updates are merged
+            controls.sequence = mControlUpdates.incrementAndGet();
+            flush = mControls.add(controls);
+        }
+        if (!flush) {
+            mControlsCoalesced.incrementAndGet();
+        }
+
+        if (flush) {
+            handler.post(mFlushControls);
+        }
+
+        return controls.sequence;
+    }
+
+    /**
+     * Counts of control updates, of repeating request updates they were submitted with and of
+     * those merged into a later one.
+     */
+    public JSObject getControlMetrics() {
+        JSObject metrics = new JSObject();
+        metrics.put("updates", mControlUpdates.get());
+        metrics.put("submitted", mControlsSubmitted.get());
+        metrics.put("coalesced", mControlsCoalesced.get());
+
+        return metrics;
+    }
+
+    /**
+     * Submits the pending controls unless an update is still waiting for its frame, or a still
+     * capture is going through the lock and capture stages, {@link #unlockFocus()} flushing them
+     * then. Runs on the background thread.
+     */
+    @SuppressWarnings({"CallToPrintStackTrace"})
+    private void flushControls() {
+        ControlsCoalescer.Batch batch = mControls.poll(mState != STATE_PREVIEW || mCurrentCaptures != null);
+        if (batch == null) {
+            return;
+        }
+
+        ManualControls controls = batch.controls;
+        List<ManualControls> listeners = batch.listeners;
+
+        if (controls.shutterSpeed != null) seekSs = controls.shutterSpeed;
+        if (controls.iso != null) seekIso = controls.iso;
+        if (controls.aperture != null) seekAperture = controls.aperture;
+        if (controls.exposureCompensation != null) seekExposureCompensation = controls.exposureCompensation;
+        if (controls.focus != null) seekFocus = controls.focus;
+
+        if (mCaptureSession == null || mPreviewRequestBuilder == null) {
+            // The values are picked up by the next session
+            for (ManualControls listener : listeners) {
+                listener.onFailed("Camera is not running");
+            }
+            return;
+        }
+
+        // Shutter speed and ISO are set together
+        setCaptureBuilderIso(mPreviewRequestBuilder);
+        setCaptureBuilderAperture(mPreviewRequestBuilder);
         setCaptureBuilderExposureCompensation(mPreviewRequestBuilder);
-        setRepeatingRequest();
+        setCaptureBuilderFocus(mPreviewRequestBuilder);
+
+        mAwaitingControls.addAll(listeners);
+        try {
+            buildPreviewRequest();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+            mControls.onSubmitted();
+            mControlsSubmitted.incrementAndGet();
+
+            // Earlier updates still settling are covered by this one
+            boolean manualExposure = seekSs >= 0 && seekIso >= 0;
+            PendingControls settling = new PendingControls(
+                    controls.sequence,
+                    mLastPreviewFrameNumber,
+                    manualExposure ? seekSs : null,
+                    manualExposure ? seekIso : null,
+                    seekAperture > 0 ? seekAperture : null
+            );
+            settling.request = mPreviewRequest;
+            mSettlingControls = settling;
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+            for (ManualControls listener : listeners) {
+                mAwaitingControls.remove(listener);
+                listener.onFailed("Cannot apply controls: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Settles controls once the first frame carrying them starts, along with older ones that
+     * were replaced before getting a frame of their own. Runs on the background thread.
+     */
+    private void onControlsApplied(ManualControls controls, long frameNumber) {
+        if (!mAwaitingControls.contains(controls)) {
+            return;
+        }
+
+        ManualControls awaiting;
+        do {
+            awaiting = mAwaitingControls.poll();
+            if (awaiting != null) {
+                awaiting.onApplied(frameNumber);
+            }
+        } while (awaiting != null && awaiting != controls);
+    }
+
+    /**
+     * Builds {@link #mPreviewRequest}, tagged with the latest awaiting controls so they are
+     * reported applied even if the request gets rebuilt before its first frame.
+     */
+    private void buildPreviewRequest() {
+        // Triggers only belong to one-shot requests, a repeating one would fire them every frame
+        resetTriggers(mPreviewRequestBuilder);
+        mPreviewRequestBuilder.setTag(mAwaitingControls.peekLast());
+        try {
+            mPreviewRequest = mPreviewRequestBuilder.build();
+        } finally {
+            mPreviewRequestBuilder.setTag(null);
+        }
+
+        // The builder keeps the values of the settling update
+        PendingControls settling = mSettlingControls;
+        if (settling != null) {
+            settling.request = mPreviewRequest;
+        }
+    }
+
+    private static void resetTriggers(CaptureRequest.Builder builder) {
+        builder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+        builder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
     }
 
     /**
-     * Initiate a still image capture.
+     * Queues a still image capture, it starts as soon as the previous one has been shot, while
+     * earlier pictures are still being saved.
+     *
+     * @return {@code false} if the capture was refused because the encoder is saturated
      */
-    public void takePicture(String picturePath) {
-        mPicture = new File(Environment.getExternalStorageDirectory(), picturePath);
-        mThumbnail = null;
-        mThumbnailWidth = null;
-        mThumbnailHeight = null;
-        mThumbnailQuality = null;
-        lockFocus();
+    public boolean takePicture(PendingCapture capture) {
+        if (capture.zsl && mZslRingBuffer != null) {
+            return takeZslPicture(capture);
+        }
+
+        return queueCaptures(Collections.singletonList(capture));
     }
 
-    public void takePicture(String picturePath, String thumbnailPath, Integer thumbnailWidth, Integer thumbnailHeight, Integer thumbnailQuality) {
-        mPicture = new File(Environment.getExternalStorageDirectory(), picturePath);
-        mThumbnail = new File(Environment.getExternalStorageDirectory(), thumbnailPath);
-        mThumbnailWidth = thumbnailWidth;
-        mThumbnailHeight = thumbnailHeight;
-        mThumbnailQuality = thumbnailQuality;
-        lockFocus();
+    /**
+     * Captures the ring frame closest to the shutter press, without going through the lock stage.
+     */
+    private boolean takeZslPicture(PendingCapture capture) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null || !EncodeExecutor.getInstance().tryReservePicture()) {
+            return false;
+        }
+
+        capture.ratio = (float) vfWidth / vfHeight;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                shootZslPicture(capture);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Reprocesses or encodes a ring frame for a capture, falling back to a regular capture if
+     * there is none. Runs on the background thread.
+     */
+    @SuppressWarnings({"CallToPrintStackTrace"})
+    private void shootZslPicture(PendingCapture capture) {
+        Activity activity = getActivity();
+        ZslRingBuffer ringBuffer = mZslRingBuffer;
+        ZslRingBuffer.Frame frame = ringBuffer != null && activity != null && mCaptureSession != null
+                ? ringBuffer.take(capture.requestedAt, mRealtimeTimestamps)
+                : null;
+        if (frame == null) {
+            Log.w(TAG, "No zero shutter lag frame for capture " + capture.id + ", capturing a new one");
+            mCaptureQueue.add(Collections.singletonList(capture));
+            startNextCapture();
+            return;
+        }
+
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        int orientation = getOrientation(rotation);
+        Log.d(TAG, "Capture " + capture.id + " uses a frame "
+                + (capture.requestedAt - frame.getTimestamp()) / 1_000_000 + " ms before the shutter press");
+
+        if (!ringBuffer.isReprocessable() || mZslImageWriter == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // The frame is encoded along with the rest of the save
+            capture.orientation = orientation;
+            // Sensor timestamps only tell the exposure time when they share the realtime clock
+            capture.exposedAt = mRealtimeTimestamps ? frame.getTimestamp() : SystemClock.elapsedRealtimeNanos();
+            capture.timings.mark(CaptureTimings.IMAGE_AVAILABLE);
+            savePreviewThumbnail(capture);
+            eventListeners.onShutter(capture);
+            EncodeExecutor.getInstance().execute(
+                    EncodeExecutor.PRIORITY_PICTURE,
+                    new ImageSaver(frame.image, capture, frame.result, eventListeners, mCaptureCatalog)
+            );
+            return;
+        }
+
+        boolean queued = false;
+        try {
+            CaptureRequest.Builder reprocessBuilder = mCameraDevice.createReprocessCaptureRequest(frame.result);
+            reprocessBuilder.addTarget(mImageReader.getSurface());
+            reprocessBuilder.setTag(capture);
+            reprocessBuilder.set(CaptureRequest.JPEG_ORIENTATION, orientation);
+
+            mZslImageWriter.queueInputImage(frame.image);
+            queued = true;
+            mShotCaptures.add(capture);
+            mCaptureSession.capture(reprocessBuilder.build(), mStillCaptureCallback, mBackgroundHandler);
+            capture.timings.mark(CaptureTimings.STILL_SUBMITTED);
+        } catch (CameraAccessException | IllegalStateException | IllegalArgumentException e) {
+            e.printStackTrace();
+            if (!queued) {
+                frame.image.close();
+            }
+            mShotCaptures.remove(capture);
+            failCapture(capture, "Cannot reprocess frame: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues a burst, its frames are shot back-to-back after a single focus and exposure lock.
+     *
+     * @return {@code false} if the burst was refused because the encoder cannot take all of its
+     * frames
+     */
+    public boolean takeBurst(PendingBurst burst) {
+        return queueCaptures(burst.frames);
+    }
+
+    private boolean queueCaptures(List<PendingCapture> captures) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null || !EncodeExecutor.getInstance().tryReservePictures(captures.size())) {
+            return false;
+        }
+
+        float ratio = (float) vfWidth / vfHeight;
+        for (PendingCapture capture : captures) {
+            capture.ratio = ratio;
+        }
+        mCaptureQueue.add(captures);
+        handler.post(mStartNextCapture);
+
+        return true;
+    }
+
+    private final Runnable mStartNextCapture = new Runnable() {
+        @Override
+        public void run() {
+            startNextCapture();
+        }
+    };
+
+    /**
+     * Starts the next queued captures, unless some are already going through the lock and capture
+     * stages. Runs on the background thread.
+     */
+    private void startNextCapture() {
+        if (mCurrentCaptures != null || mCaptureSession == null || mImageReader == null) {
+            return;
+        }
+
+        closeRetiredImageReaders();
+        apply3ALock();
+        if (m3ALockConverging) {
+            // Captures take the fast path once locked
+            return;
+        }
+
+        List<PendingCapture> next = mCaptureQueue.peek();
+        if (next == null) {
+            return;
+        }
+
+        // Each frame of a burst needs a buffer until it is saved, the session is reconfigured
+        // with a deeper image reader first and this gets called again once it is ready
+        int maxImages = Math.max(MIN_IMAGES, Math.min(next.size(), MAX_IMAGES));
+        if (mImageReader.getMaxImages() < maxImages) {
+            Log.d(TAG, "Growing the capture image reader to " + maxImages + " images");
+            replaceImageReader(new Size(mImageReader.getWidth(), mImageReader.getHeight()), maxImages);
+            return;
+        }
+
+        mCurrentCaptures = mCaptureQueue.poll();
+        mRemainingShots = mCurrentCaptures.size();
+        mFastPath = m3ALocked || isManualCapture();
+        if (mFastPath) {
+            // There is nothing to converge, the still request goes out right away
+            mState = STATE_PICTURE_TAKEN;
+            captureStillPicture();
+        } else {
+            lockFocus();
+        }
+    }
+
+    /**
+     * Holds AF and AE locked in the repeating request until {@link #unlock3A()}, captures then
+     * skip the lock stage. The lock is applied once the captures in flight are shot, and the lock
+     * listener told once results show AF and AE locked or their budgets have run out.
+     *
+     * @return {@code false} if the camera isn't running
+     */
+    public boolean lock3A(Pending3ALock lock) {
+        if (mBackgroundHandler == null) {
+            return false;
+        }
+
+        mPending3ALocks.add(lock);
+        return request3ALock(true);
+    }
+
+    /**
+     * Releases the lock held by {@link #lock3A(Pending3ALock)}.
+     *
+     * @return {@code false} if the camera isn't running
+     */
+    public boolean unlock3A() {
+        return request3ALock(false);
+    }
+
+    private boolean request3ALock(boolean locked) {
+        Handler handler = mBackgroundHandler;
+        if (handler == null) {
+            return false;
+        }
+
+        m3ALockRequested = locked;
+        handler.post(mStartNextCapture);
+
+        return true;
+    }
+
+    /**
+     * Locks or unlocks AF and AE in the repeating request as requested, between captures only as
+     * the lock stage drives them otherwise. Runs on the background thread.
+     */
+    @SuppressWarnings({"CallToPrintStackTrace"})
+    private void apply3ALock() {
+        boolean locked = m3ALockRequested;
+        if (locked && m3ALocked) {
+            // Locked already, later calls don't wait
+            settle3ALocks(false, false);
+            return;
+        }
+        if (!locked) {
+            Pending3ALock lock;
+            while ((lock = mPending3ALocks.poll()) != null) {
+                lock.onFailed("3A unlocked before locking");
+            }
+        }
+        if (locked == (m3ALocked || m3ALockConverging)) {
+            return;
+        }
+
+        if (m3ALockConverging) {
+            m3ALockConverging = false;
+            mBackgroundHandler.removeCallbacks(m3ALockDeadline);
+        }
+
+        try {
+            if (seekFocus < 0) {
+                // The trigger is a one-shot, the repeating request itself must not carry it
+                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, locked ? CameraMetadata.CONTROL_AF_TRIGGER_START : CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+                mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            }
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, locked);
+            buildPreviewRequest();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+            m3ALocked = false;
+            if (locked) {
+                Pending3ALock lock = mPending3ALocks.peek();
+                m3ALockConverging = true;
+                m3ALockStartedAt = SystemClock.elapsedRealtime();
+                m3ALockAfTimeoutMs = lock != null ? lock.afTimeoutMs : PendingCapture.DEFAULT_AF_TIMEOUT_MS;
+                m3ALockAeTimeoutMs = lock != null ? lock.aeTimeoutMs : PendingCapture.DEFAULT_AE_TIMEOUT_MS;
+                mBackgroundHandler.removeCallbacks(m3ALockDeadline);
+                mBackgroundHandler.postDelayed(m3ALockDeadline, Math.max(m3ALockAfTimeoutMs, m3ALockAeTimeoutMs));
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Holds the lock once a result of the locked repeating request shows AF and AE locked, or
+     * their budgets have run out. Runs on the background thread.
+     *
+     * @param result {@code null} to only check the budgets
+     */
+    private void check3ALock(CaptureResult result) {
+        boolean afLocked = seekFocus >= 0;
+        boolean aeLocked = seekSs >= 0 && seekIso >= 0;
+        if (result != null && Boolean.TRUE.equals(result.getRequest().get(CaptureRequest.CONTROL_AE_LOCK))) {
+            // CONTROL_AF_STATE and CONTROL_AE_STATE can be null on some devices
+            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            afLocked |= afState == null
+                    || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                    || afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            aeLocked |= aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - m3ALockStartedAt;
+        boolean afTimedOut = !afLocked && elapsed >= m3ALockAfTimeoutMs;
+        boolean aeTimedOut = !aeLocked && elapsed >= m3ALockAeTimeoutMs;
+        if ((afLocked || afTimedOut) && (aeLocked || aeTimedOut)) {
+            if (afTimedOut || aeTimedOut) {
+                Log.w(TAG, (afTimedOut ? "AF" : "AE") + " did not lock in time, holding the lock anyway");
+            }
+
+            m3ALockConverging = false;
+            m3ALocked = true;
+            mBackgroundHandler.removeCallbacks(m3ALockDeadline);
+            settle3ALocks(afTimedOut, aeTimedOut);
+            // Captures may have been waiting for the lock
+            startNextCapture();
+        }
+    }
+
+    private void settle3ALocks(boolean afTimedOut, boolean aeTimedOut) {
+        Pending3ALock lock;
+        while ((lock = mPending3ALocks.poll()) != null) {
+            lock.onLocked(afTimedOut, aeTimedOut);
+        }
+    }
+
+    /**
+     * Whether focus, shutter speed and ISO are all manual, the 3A routines having nothing to do.
+     */
+    private boolean isManualCapture() {
+        return seekFocus >= 0 && seekSs >= 0 && seekIso >= 0;
+    }
+
+    /**
+     * Gives back the encoder slot of a capture that won't produce an image and reports it.
+     */
+    private void failCapture(PendingCapture capture, String message) {
+        Log.e(TAG, "Capture " + capture.id + " failed: " + message);
+        EncodeExecutor.getInstance().releasePicture();
+        if (capture.burst != null) {
+            eventListeners.onBurstFailed(capture.burst.id, message);
+        } else {
+            eventListeners.onCaptureFailed(capture.id, message);
+        }
+    }
+
+    /**
+     * Fails the captures going through the lock and capture stages.
+     */
+    private void abortCurrentCaptures(String message) {
+        List<PendingCapture> captures = mCurrentCaptures;
+        mCurrentCaptures = null;
+        mState = STATE_PREVIEW;
+        cancelLockDeadline();
+        if (captures != null) {
+            for (PendingCapture capture : captures) {
+                mShotCaptures.remove(capture);
+                failCapture(capture, message);
+            }
+        }
+    }
+
+    /**
+     * Fails every capture that hasn't been saved yet, the camera is going away.
+     */
+    private void failPendingCaptures(String message) {
+        abortCurrentCaptures(message);
+
+        for (PendingCapture capture : mShotCaptures) {
+            if (mShotCaptures.remove(capture)) {
+                failCapture(capture, message);
+            }
+        }
+
+        List<PendingCapture> captures;
+        while ((captures = mCaptureQueue.poll()) != null) {
+            for (PendingCapture capture : captures) {
+                failCapture(capture, message);
+            }
+        }
     }
 
     public void openPIP(int width, int height, int x, int y) {
@@ -917,6 +2031,13 @@ public class Camera2Fragment extends Fragment {
                 mCaptureSession.close();
                 mCaptureSession = null;
             }
+            if (mZslImageWriter != null) {
+                mZslImageWriter.close();
+                mZslImageWriter = null;
+            }
+            if (mZslMemoryBudget > 0 && mZslRingBuffer == null && !mZslUnsupported) {
+                mZslRingBuffer = createZslRingBuffer();
+            }
 
             SurfaceTexture vfTexture = mTextureView.getSurfaceTexture();
             assert vfTexture != null;
@@ -934,6 +2055,9 @@ public class Camera2Fragment extends Fragment {
 
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_MANUAL);
+            // A new session starts unlocked, the lock is applied again if still requested
+            m3ALocked = false;
+            m3ALockConverging = false;
             mPreviewRequestBuilder.addTarget(vfSurface);
 
             List<Surface> surfaces = new ArrayList<>();
@@ -946,8 +2070,14 @@ public class Camera2Fragment extends Fragment {
 
             surfaces.add(mImageReader.getSurface());
 
-            // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(surfaces,
+            // The ring keeps recent frames streamed by the repeating request
+            ZslRingBuffer ringBuffer = mZslRingBuffer;
+            if (ringBuffer != null) {
+                mPreviewRequestBuilder.addTarget(ringBuffer.getSurface());
+                surfaces.add(ringBuffer.getSurface());
+            }
+
+            CameraCaptureSession.StateCallback stateCallback =
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -958,19 +2088,66 @@ public class Camera2Fragment extends Fragment {
                             }
 
                             mCaptureSession = cameraCaptureSession;
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && cameraCaptureSession.isReprocessable()) {
+                                mZslImageWriter = ImageWriter.newInstance(cameraCaptureSession.getInputSurface(), 2);
+                            }
                             setCaptureBuilder(mPreviewRequestBuilder);
                             setRepeatingRequest();
+                            mControls.onFrame();
+                            flushControls();
 
                             eventListeners.onStart();
+                            // Captures may have been waiting for the session to be reconfigured
+                            Handler handler = mBackgroundHandler;
+                            if (handler != null) {
+                                handler.post(mStartNextCapture);
+                            }
                         }
 
                         @Override
                         public void onConfigureFailed(
                                 @NonNull CameraCaptureSession cameraCaptureSession) {
-                            Log.d(TAG, "Failed");
+                            // The camera is already closed
+                            if (mCameraDevice == null) {
+                                return;
+                            }
+
+                            if (mZslRingBuffer != null) {
+                                // The ring is the stream the camera is the least likely to take
+                                Log.w(TAG, "Cannot configure the session with the zero shutter lag ring, leaving it out");
+                                mZslUnsupported = true;
+                                mZslRingBuffer.close();
+                                mZslRingBuffer = null;
+                                createCameraPreviewSession();
+                                return;
+                            }
+
+                            Log.e(TAG, "Cannot configure the camera session");
+                            eventListeners.onStartFailed("Cannot configure the camera session");
+                            Handler handler = mBackgroundHandler;
+                            if (handler != null) {
+                                handler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        failPendingCaptures("Cannot configure the camera session");
+                                    }
+                                });
+                            }
                         }
-                    }, null
-            );
+                    };
+
+            // Here, we create a CameraCaptureSession for camera preview.
+            if (ringBuffer != null && ringBuffer.isReprocessable() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Size inputSize = ringBuffer.getSize();
+                mCameraDevice.createReprocessableCaptureSession(
+                        new InputConfiguration(inputSize.getWidth(), inputSize.getHeight(), ImageFormat.PRIVATE),
+                        surfaces,
+                        stateCallback,
+                        null
+                );
+            } else {
+                mCameraDevice.createCaptureSession(surfaces, stateCallback, null);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -978,7 +2155,7 @@ public class Camera2Fragment extends Fragment {
 
     private void setRepeatingRequest() {
         try {
-            mPreviewRequest = mPreviewRequestBuilder.build();
+            buildPreviewRequest();
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException ignored) {}
     }
@@ -1013,16 +2190,57 @@ public class Camera2Fragment extends Fragment {
         }
     }
 
-    private void setCaptureBuilderAperture(CaptureRequest.Builder captureBuilder) {
-        if (seekAperture > 0) {
-            captureBuilder.set(CaptureRequest.LENS_APERTURE, seekAperture);
+    private void setCaptureBuilderAperture(CaptureRequest.Builder captureBuilder) {
+        if (seekAperture > 0) {
+            captureBuilder.set(CaptureRequest.LENS_APERTURE, seekAperture);
+        }
+    }
+
+    private void setCaptureBuilderExposureCompensation(CaptureRequest.Builder captureBuilder) {
+        captureBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, seekExposureCompensation);
+    }
+
+    /**
+     * Applies the bracket offset of a capture on top of the manual controls, clamped to what the
+     * camera supports.
+     */
+    private void setCaptureBuilderBracket(CaptureRequest.Builder captureBuilder, PendingCapture capture) {
+        double factor = Math.pow(2, capture.bracketOffset);
+
+        switch (capture.bracketType) {
+            case PendingCapture.BRACKET_EXPOSURE: {
+                if (seekSs < 0 || seekIso < 0) break;
+
+                long exposureTime = Math.round(seekSs * factor);
+                Range<Long> range = getShutterSpeedRange();
+                captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, range != null ? range.clamp(exposureTime) : exposureTime);
+                break;
+            }
+            case PendingCapture.BRACKET_ISO: {
+                if (seekSs < 0 || seekIso < 0) break;
+
+                int sensitivity = (int) Math.round(seekIso * factor);
+                Range<Integer> range = getIsoRange();
+                captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, range != null ? range.clamp(sensitivity) : sensitivity);
+                break;
+            }
+            case PendingCapture.BRACKET_FOCUS: {
+                float focusDistance = seekFocus >= 0 ? seekFocus : mFocusDistance;
+                if (focusDistance < 0) break;
+
+                focusDistance = Math.max(0, focusDistance + capture.bracketOffset);
+                Float minimumFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+                if (minimumFocusDistance != null && minimumFocusDistance > 0) {
+                    focusDistance = Math.min(focusDistance, minimumFocusDistance);
+                }
+
+                captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+                captureBuilder.set(CaptureRequest.LENS_FOCUS_DISTANCE, focusDistance);
+                break;
+            }
         }
     }
 
-    private void setCaptureBuilderExposureCompensation(CaptureRequest.Builder captureBuilder) {
-        captureBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, seekExposureCompensation);
-    }
-
     private void setCaptureBuilderFocus(CaptureRequest.Builder captureBuilder) {
         if (seekFocus < 0) {
             captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
@@ -1131,10 +2349,84 @@ public class Camera2Fragment extends Fragment {
             // This is how to tell the camera to lock focus.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
             // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            startLockStage(STATE_WAITING_LOCK);
+            CaptureRequest request = mPreviewRequestBuilder.build();
+            resetTriggers(mPreviewRequestBuilder);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
+            markStage(CaptureTimings.AF_TRIGGERED);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            abortCurrentCaptures("Camera access error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Enters an AF or AE lock stage, starting the clock of its latency budget. Should the camera
+     * stop delivering results, the shot fires at the deadline anyway.
+     */
+    private void startLockStage(int state) {
+        mState = state;
+        mLockStageStartedAt = SystemClock.elapsedRealtime();
+
+        List<PendingCapture> captures = mCurrentCaptures;
+        Handler handler = mBackgroundHandler;
+        if (captures != null && handler != null) {
+            PendingCapture capture = captures.get(0);
+            handler.removeCallbacks(mLockDeadline);
+            handler.postDelayed(mLockDeadline, state == STATE_WAITING_LOCK ? capture.afTimeoutMs : capture.aeTimeoutMs);
+        }
+    }
+
+    /**
+     * Whether the current lock stage went past its budget, the one of the first capture of a burst.
+     *
+     * @param af The AF budget if {@code true}, the AE one otherwise
+     */
+    private boolean isLockStageOverdue(boolean af) {
+        List<PendingCapture> captures = mCurrentCaptures;
+        if (captures == null) {
+            return false;
+        }
+
+        PendingCapture capture = captures.get(0);
+        return SystemClock.elapsedRealtime() - mLockStageStartedAt >= (af ? capture.afTimeoutMs : capture.aeTimeoutMs);
+    }
+
+    private void markLockTimedOut(boolean af) {
+        List<PendingCapture> captures = mCurrentCaptures;
+        if (captures == null) {
+            return;
+        }
+
+        Log.w(TAG, (af ? "AF" : "AE") + " did not converge in time, capturing anyway");
+        for (PendingCapture capture : captures) {
+            if (af) {
+                capture.afTimedOut = true;
+            } else {
+                capture.aeTimedOut = true;
+            }
+        }
+    }
+
+    /**
+     * Marks a stage of the captures going through the lock stage.
+     */
+    private void markStage(int stage) {
+        List<PendingCapture> captures = mCurrentCaptures;
+        if (captures == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (PendingCapture capture : captures) {
+            capture.timings.mark(stage, now);
+        }
+    }
+
+    private void cancelLockDeadline() {
+        Handler handler = mBackgroundHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mLockDeadline);
         }
     }
 
@@ -1148,52 +2440,223 @@ public class Camera2Fragment extends Fragment {
             // This is how to tell the camera to trigger.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
             // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            startLockStage(STATE_WAITING_PRECAPTURE);
+            CaptureRequest request = mPreviewRequestBuilder.build();
+            resetTriggers(mPreviewRequestBuilder);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
+            markStage(CaptureTimings.PRECAPTURE_STARTED);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            abortCurrentCaptures("Camera access error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} for still requests, each of them tagged with
+     * its {@link PendingCapture}.
+     */
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp,
+                                     long frameNumber) {
+            PendingCapture capture = (PendingCapture) request.getTag();
+            if (capture.exposedAt < 0) {
+                capture.exposedAt = mRealtimeTimestamps ? timestamp : SystemClock.elapsedRealtimeNanos();
+            }
+            savePreviewThumbnail(capture);
+            // The shutter goes off as exposure starts, not once the whole frame is read out
+            eventListeners.onShutter(capture);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            PendingCapture capture = (PendingCapture) request.getTag();
+            capture.timings.mark(CaptureTimings.CAPTURE_COMPLETED);
+            Log.d(TAG, capture.id + ": " + capture.picture);
+
+            // Burst statistics are complete before the frame can be saved
+            if (capture.burst != null) {
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (timestamp != null) {
+                    capture.burst.onFrameCaptured(timestamp);
+                }
+            }
+
+            if (mShotCaptures.contains(capture)) {
+                mCaptureResultMatcher.onResult(result, result.get(CaptureResult.SENSOR_TIMESTAMP));
+            }
+            onShotDone(capture);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            PendingCapture capture = (PendingCapture) request.getTag();
+            dropShot(capture, "Capture failed: " + failure.getReason());
+            onShotDone(capture);
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull Surface target,
+                                        long frameNumber) {
+            // The result still comes, but no image will
+            dropShot((PendingCapture) request.getTag(), "Picture buffer was lost");
+        }
+    };
+
+    /**
+     * Gives up on the image of a still request, burst frames are counted as dropped.
+     */
+    private void dropShot(PendingCapture capture, String message) {
+        if (!mShotCaptures.remove(capture)) {
+            return;
+        }
+
+        if (capture.burst != null) {
+            Log.w(TAG, "Burst " + capture.burst.id + " dropped frame " + capture.id + ": " + message);
+            EncodeExecutor.getInstance().releasePicture();
+            capture.burst.onFrameDropped();
+            settleBurstFrame(eventListeners, capture.burst);
+        } else {
+            failCapture(capture, message);
+        }
+    }
+
+    /**
+     * Moves on once every still request of {@link #mCurrentCaptures} has completed or failed.
+     */
+    private void onShotDone(PendingCapture capture) {
+        List<PendingCapture> captures = mCurrentCaptures;
+        if (captures == null || !captures.contains(capture) || --mRemainingShots > 0) {
+            return;
+        }
+
+        mCurrentCaptures = null;
+        unlockFocus();
+    }
+
+    /**
+     * Writes the thumbnail of a capture from the viewfinder as it is shot, within milliseconds,
+     * the viewfinder being framed like the picture. Should the grab fail, or lose the race against
+     * the picture being saved, the thumbnail is scaled down from the picture as usual.
+     */
+    private void savePreviewThumbnail(PendingCapture capture) {
+        Activity activity = getActivity();
+        AutoFitTextureView textureView = mTextureView;
+        if (!capture.previewThumbnail || !capture.hasThumbnail() || activity == null || textureView == null) {
+            return;
         }
+
+        // Texture views can only be read from the UI thread
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!textureView.isAvailable()) {
+                    return;
+                }
+
+                Bitmap bitmap = textureView.getBitmap(capture.thumbnailWidth, capture.thumbnailHeight);
+                if (bitmap == null || !capture.thumbnailClaimed.compareAndSet(false, true)) {
+                    return;
+                }
+
+                EncodeExecutor.getInstance().execute(
+                        EncodeExecutor.PRIORITY_THUMBNAIL,
+                        new ThumbnailSaver(bitmap, capture, eventListeners)
+                );
+            }
+        });
     }
 
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     * Reports a burst once each of its frames has been saved or dropped.
      */
-    CaptureRequest.Builder captureBuilder;
+    private static void settleBurstFrame(Camera2EventListeners listeners, PendingBurst burst) {
+        if (burst.onFrameSettled()) {
+            Log.d(TAG, "Burst " + burst.id + ": " + burst.getCaptured() + " frames at " + burst.getFps()
+                    + " fps, " + burst.getDropped() + " dropped");
+            listeners.onBurstCaptured(burst);
+        }
+    }
 
+    /**
+     * Capture the still pictures of {@link #mCurrentCaptures}, as a burst if there are several of
+     * them. This method should be called when we get a response in {@link #mCaptureCallback}
+     * from {@link #lockFocus()}.
+     */
     @SuppressWarnings({"CallToPrintStackTrace"})
     private void captureStillPicture() {
+        cancelLockDeadline();
         try {
+            final List<PendingCapture> captures = mCurrentCaptures;
             final Activity activity = getActivity();
+            if (captures == null) {
+                return;
+            }
             if (null == activity || null == mCameraDevice) {
+                abortCurrentCaptures("Camera is not available");
                 return;
             }
-            // This is the CaptureRequest.Builder that we use to take a picture.
-            captureBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-            captureBuilder.addTarget(mImageReader.getSurface());
-
-            setCaptureBuilder(captureBuilder);
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            int orientation = getOrientation(rotation);
 
-            CameraCaptureSession.CaptureCallback CaptureCallback = new CameraCaptureSession.CaptureCallback() {
+            List<CaptureRequest> requests = new ArrayList<>(captures.size());
+            for (PendingCapture capture : captures) {
+                requests.add(createStillCaptureRequest(capture, orientation));
+            }
 
-                @Override
-                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                               @NonNull CaptureRequest request,
-                                               @NonNull TotalCaptureResult result) {
-                Log.d(TAG, mPicture.toString());
-                unlockFocus();
+            if (!mFastPath) {
+                mCaptureSession.stopRepeating();
+            }
+            for (PendingCapture capture : captures) {
+                capture.fastPath = mFastPath;
+                // Whether it converged or timed out, precapture is over
+                if (capture.timings.isMarked(CaptureTimings.PRECAPTURE_STARTED)) {
+                    capture.timings.mark(CaptureTimings.PRECAPTURE_DONE);
                 }
-            };
-
-            mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            }
+            mShotCaptures.addAll(captures);
+            if (requests.size() == 1) {
+                mCaptureSession.capture(requests.get(0), mStillCaptureCallback, mBackgroundHandler);
+            } else {
+                mCaptureSession.captureBurst(requests, mStillCaptureCallback, mBackgroundHandler);
+            }
+            markStage(CaptureTimings.STILL_SUBMITTED);
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            abortCurrentCaptures("Camera access error: " + e.getMessage());
+            unlockFocus();
+        }
+    }
+
+    /**
+     * Builds the still request of a capture, tagged with it.
+     */
+    private CaptureRequest createStillCaptureRequest(PendingCapture capture, int orientation) throws CameraAccessException {
+        // This is the CaptureRequest.Builder that we use to take a picture.
+        CaptureRequest.Builder captureBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+        captureBuilder.addTarget(mImageReader.getSurface());
+        captureBuilder.setTag(capture);
+
+        setCaptureBuilder(captureBuilder);
+        setCaptureBuilderBracket(captureBuilder, capture);
+        if (m3ALocked) {
+            // Focus stays locked as long as the AF mode doesn't change, exposure has to be told
+            captureBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
         }
+        captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, orientation);
+
+        return captureBuilder.build();
     }
 
     /**
@@ -1216,22 +2679,39 @@ public class Camera2Fragment extends Fragment {
      */
     @SuppressWarnings({"CallToPrintStackTrace"})
     private void unlockFocus() {
+        if (mFastPath) {
+            // Focus was never locked and the repeating request never stopped
+            mFastPath = false;
+            mState = STATE_PREVIEW;
+            // Controls held back during the capture
+            flushControls();
+            startNextCapture();
+            return;
+        }
+
         try {
             // Reset the auto-focus trigger
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
             // setAutoFlash(mPreviewRequestBuilder);
-            mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            CaptureRequest request = mPreviewRequestBuilder.build();
+            resetTriggers(mPreviewRequestBuilder);
+            mCaptureSession.capture(request, mCaptureCallback, mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
             mState = STATE_PREVIEW;
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
-        eventListeners.onCapture();
+
+        // Controls held back during the capture, on top of the restored repeating request
+        flushControls();
+
+        // Pictures already shot keep being saved meanwhile
+        startNextCapture();
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Saves a JPEG {@link Image} into the specified {@link File}, runs on the {@link EncodeExecutor}.
      */
     private static class ImageSaver implements Runnable {
 
@@ -1240,125 +2720,404 @@ public class Camera2Fragment extends Fragment {
          */
         private final Image mImage;
         /**
-         * The file we save the image into.
+         * The capture the image belongs to, holding the files we save it into.
          */
-        private final File mPicture;
-        private final Float mRatio;
-        private final CaptureResult mCaptureResult;
-        private final File mThumbnail;
-        private final Integer mThumbnailWidth;
-        private final Integer mThumbnailHeight;
-        private final Integer mThumbnailQuality;
-
-        public ImageSaver(
-                Image image,
-                File picture,
-                Float ratio,
-                CaptureResult captureResult,
-                File thumbnail,
-                Integer thumbnailWidth,
-                Integer thumbnailHeight,
-                Integer thumbnailQuality
-        ) {
+        private final PendingCapture mCapture;
+        /**
+         * The result of the still capture request, matched by sensor timestamp.
+         */
+        private final TotalCaptureResult mCaptureResult;
+        private final Camera2EventListeners mListeners;
+        /**
+         * Where the picture is recorded once saved, if any
+         */
+        private final CaptureCatalog mCatalog;
+        private boolean mImageReleased;
+
+        public ImageSaver(Image image, PendingCapture capture, TotalCaptureResult captureResult, Camera2EventListeners listeners, CaptureCatalog catalog) {
             mImage = image;
-            mPicture = picture;
-            mRatio = ratio;
+            mCapture = capture;
             mCaptureResult = captureResult;
-            mThumbnail = thumbnail;
-            mThumbnailWidth = thumbnailWidth;
-            mThumbnailHeight = thumbnailHeight;
-            mThumbnailQuality = thumbnailQuality;
+            mListeners = listeners;
+            mCatalog = catalog;
         }
 
         @Override
-        @SuppressWarnings({"CallToPrintStackTrace"})
         public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.capacity()];
-            buffer.get(bytes);
-
-            // Crop image to aspect ratio
-            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            long written = -1;
+            try {
+                written = save();
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // Failing crop, encode or decode, the capture is failed like any other save error
+                Log.e(TAG, "Cannot save " + mCapture.picture, e);
+            } finally {
+                releaseImage();
+                EncodeExecutor.getInstance().releasePicture();
+            }
 
-            // Original image dimensions
-            int originalWidth = bitmap.getWidth();
-            int originalHeight = bitmap.getHeight();
+            if (written >= 0) {
+                // Listed before the capture resolves
+                if (mCatalog != null) {
+                    mCatalog.insert(mCapture, written, mCaptureResult);
+                }
+                mListeners.onPictureWritten(mCapture, written);
+                if (mCapture.burst != null) {
+                    settleBurstFrame(mListeners, mCapture.burst);
+                }
+            } else if (mCapture.burst != null) {
+                Log.w(TAG, "Burst " + mCapture.burst.id + " could not save frame " + mCapture.id);
+                mCapture.burst.onFrameDropped();
+                settleBurstFrame(mListeners, mCapture.burst);
+            } else {
+                mListeners.onCaptureFailed(mCapture.id, "Cannot save " + mCapture.picture);
+            }
+        }
 
-            // Desired aspect ratio
+        /**
+         * @return The bytes written and synced, {@code -1} if the picture couldn't be saved
+         */
+        @SuppressWarnings({"CallToPrintStackTrace"})
+        private long save() {
+            ByteBuffer buffer;
+            int orientation;
+            if (mImage.getFormat() == ImageFormat.YUV_420_888) {
+                // Zero shutter lag frame the camera couldn't reprocess, framed while encoding. The
+                // frame is in the sensor layout, rotated through EXIF like the crop
+                orientation = ExifWriter.orientationFromDegrees(mCapture.orientation);
+                int[] crop = getCropRect(mImage.getWidth(), mImage.getHeight(), getLayoutRatio(orientation));
+                JpegOutputStream encoded = new JpegOutputStream(crop[2] * crop[3] / 4);
+                Rect rect = new Rect(crop[0], crop[1], crop[0] + crop[2], crop[1] + crop[3]);
+                if (!YuvJpegEncoder.encode(mImage, rect, 100, encoded)) {
+                    Log.e(TAG, "Cannot encode " + mCapture.picture);
+                    return -1;
+                }
+                releaseImage();
+                mCapture.timings.mark(CaptureTimings.ENCODED);
 
-            // Calculate the desired crop dimensions
-            int desiredWidth = originalWidth;
-            int desiredHeight = (int) (originalWidth / mRatio);
+                buffer = encoded.toByteBuffer();
+            } else {
+                buffer = mImage.getPlanes()[0].getBuffer();
+                // Pictures keep the pixel layout of the camera JPEG, so does its orientation
+                orientation = ExifWriter.readOrientation(buffer);
+            }
 
-            if (desiredHeight > originalHeight) {
-                desiredHeight = originalHeight;
-                desiredWidth = (int) (originalHeight * mRatio);
+            // HALs applying the JPEG orientation through EXIF leave the pixels in the sensor
+            // layout, the picture is compared and cropped in that layout
+            float ratio = getLayoutRatio(orientation);
+            int[] size = LosslessJpegCropper.readSize(buffer);
+            ByteBuffer jpeg = null;
+            Bitmap croppedBitmap = null;
+            // The camera JPEG and the crop of the picture in it, when the picture is re-encoded
+            byte[] original = null;
+            Rect originalCrop = null;
+
+            if (size != null && matchesAspectRatio(size[0], size[1], ratio)) {
+                // Already framed, by the sensor or because the viewfinder matches it, the image
+                // plane is written as-is
+                jpeg = buffer;
+            } else if (mCapture.losslessCrop && size != null) {
+                // Losslessly cropped JPEG, when supported
+                jpeg = cropLossless(buffer, size, ratio);
+                if (jpeg != null) {
+                    mCapture.timings.mark(CaptureTimings.CROPPED);
+                }
             }
 
-            // Calculate the starting points for cropping (centered)
-            int startX = (originalWidth - desiredWidth) / 2;
-            int startY = (originalHeight - desiredHeight) / 2;
+            if (jpeg == null) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                releaseImage();
 
-            Bitmap croppedBitmap = Bitmap.createBitmap(bitmap, startX, startY, desiredWidth, desiredHeight);
+                // Crop image to aspect ratio
+                Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+                if (bitmap == null) {
+                    Log.e(TAG, "Cannot decode " + mCapture.picture);
+                    return -1;
+                }
+                mCapture.timings.mark(CaptureTimings.DECODED);
+                int[] crop = getCropRect(bitmap.getWidth(), bitmap.getHeight(), ratio);
+
+                croppedBitmap = Bitmap.createBitmap(bitmap, crop[0], crop[1], crop[2], crop[3]);
+                mCapture.timings.mark(CaptureTimings.CROPPED);
+
+                // The thumbnail is decoded from the camera JPEG on its own, it doesn't have to
+                // wait for the picture to be encoded
+                original = bytes;
+                originalCrop = new Rect(crop[0], crop[1], crop[0] + crop[2], crop[1] + crop[3]);
+                if (!mCapture.previewThumbnail) {
+                    saveThumbnail(original, originalCrop);
+                }
+            } else if (jpeg != buffer) {
+                releaseImage();
+            }
 
             FileOutputStream output = null;
-            FileOutputStream thumbnailOutput = null;
+            long written = -1;
             try {
-                output = new FileOutputStream(mPicture);
-                croppedBitmap.compress(Bitmap.CompressFormat.JPEG, 100, output);
+                if (jpeg == null) {
+                    JpegOutputStream encoded = new JpegOutputStream(croppedBitmap.getByteCount() / 8);
+                    croppedBitmap.compress(Bitmap.CompressFormat.JPEG, 100, encoded);
+                    jpeg = encoded.toByteBuffer();
+                    mCapture.timings.mark(CaptureTimings.ENCODED);
+                }
+                // Zero shutter lag frames encoded in software are no larger than the preview,
+                // the caller is told what it actually got
+                int[] saved = LosslessJpegCropper.readSize(jpeg);
+                if (saved != null) {
+                    boolean rotated = orientation >= 5 && orientation <= 8;
+                    mCapture.width = rotated ? saved[1] : saved[0];
+                    mCapture.height = rotated ? saved[0] : saved[1];
+                }
+                mListeners.onJpegAvailable(mCapture, jpeg.remaining());
 
-                // EXIF
-                ExifInterface exif = new ExifInterface(mPicture.getAbsoluteFile());
+                // EXIF, written along with the image data in a single pass
+                ExifWriter exif = new ExifWriter();
 
                 Date currentDate = new Date();
                 String formattedDate = null;
                 if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
                     formattedDate = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.getDefault()).format(currentDate);
                 }
-                if (formattedDate != null) exif.setAttribute(ExifInterface.TAG_DATETIME, formattedDate);
+                if (formattedDate != null) exif.setDateTime(formattedDate);
 
                 Integer iso = mCaptureResult.get(CaptureResult.SENSOR_SENSITIVITY);
-                if (iso != null) exif.setAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, iso.toString());
+                if (iso != null) exif.setIso(iso);
 
                 Long shutterSpeed = mCaptureResult.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-                if (shutterSpeed != null) exif.setAttribute(ExifInterface.TAG_EXPOSURE_TIME, String.valueOf(shutterSpeed / 1_000_000_000F));
+                if (shutterSpeed != null) exif.setExposureTime(shutterSpeed);
 
                 Float aperture = mCaptureResult.get(CaptureResult.LENS_APERTURE);
-                if (aperture != null) exif.setAttribute(ExifInterface.TAG_F_NUMBER, aperture.toString());
+                if (aperture != null) exif.setFNumber(aperture);
 
                 Float focalLength = mCaptureResult.get(CaptureResult.LENS_FOCAL_LENGTH);
-                // We use this tag instead because TAG_FOCAL_LENGTH doesn't work correctly, always returning null
-                if (focalLength != null) exif.setAttribute(ExifInterface.TAG_MAKER_NOTE, focalLength.toString());
+                if (focalLength != null) exif.setFocalLength(focalLength);
 
-                exif.saveAttributes();
+                if (orientation > 0) exif.setOrientation(orientation);
 
-                if (mThumbnail != null && mThumbnailWidth != null && mThumbnailWidth > 0 && mThumbnailHeight != null && mThumbnailHeight > 0) {
-                    thumbnailOutput = new FileOutputStream(mThumbnail);
+                byte[] app1Segment = exif.toApp1Segment();
+                mCapture.timings.mark(CaptureTimings.EXIF_BUILT);
 
-                    Bitmap resizedBitmap = Bitmap.createScaledBitmap(croppedBitmap, mThumbnailWidth, mThumbnailHeight, true);
-                    resizedBitmap.compress(Bitmap.CompressFormat.JPEG, mThumbnailQuality == null ? 80 : mThumbnailQuality, thumbnailOutput);
-                }
+                output = new FileOutputStream(mCapture.picture);
+                written = ExifWriter.writeJpeg(output.getChannel(), app1Segment, jpeg);
+                // Hand the buffer back to the ImageReader as soon as possible
+                releaseImage();
+                // Only report the picture once it would survive a crash
+                output.getChannel().force(true);
+                mCapture.timings.mark(CaptureTimings.WRITTEN);
             } catch (IOException e) {
                 e.printStackTrace();
+                written = -1;
             } finally {
-                mImage.close();
+                releaseImage();
                 if (null != output) {
                     try {
                         output.close();
+                        mCapture.timings.mark(CaptureTimings.FILE_CLOSED);
                     } catch (IOException e) {
                         e.printStackTrace();
+                        written = -1;
                     }
                 }
-                if (null != thumbnailOutput) {
+            }
+
+            if (written < 0) {
+                return -1;
+            }
+            CaptureMetrics.getInstance().record(mCapture.timings);
+
+            // Unless it has been written already, decoded back from the file if need be
+            saveThumbnail(original, originalCrop);
+
+            return written;
+        }
+
+        /**
+         * Schedules the thumbnail of the capture, if it has one, ahead of any pending full
+         * resolution work.
+         *
+         * @param jpeg The camera JPEG, {@code null} to decode the saved file
+         * @param crop The picture in {@code jpeg}
+         */
+        private void saveThumbnail(byte[] jpeg, Rect crop) {
+            if (mCapture.hasThumbnail() && mCapture.thumbnailClaimed.compareAndSet(false, true)) {
+                EncodeExecutor.getInstance().execute(
+                        EncodeExecutor.PRIORITY_THUMBNAIL,
+                        new ThumbnailSaver(jpeg, crop, mCapture, mListeners)
+                );
+            }
+        }
+
+        private void releaseImage() {
+            if (!mImageReleased) {
+                mImage.close();
+                mImageReleased = true;
+            }
+        }
+
+        /**
+         * A {@link ByteArrayOutputStream} exposing its buffer, so encoded pictures aren't copied
+         * before being written.
+         */
+        private static class JpegOutputStream extends ByteArrayOutputStream {
+            JpegOutputStream(int size) {
+                super(size);
+            }
+
+            ByteBuffer toByteBuffer() {
+                return ByteBuffer.wrap(buf, 0, count);
+            }
+        }
+
+        /**
+         * The viewfinder aspect ratio of the capture in the pixel layout of an image, inverted
+         * when the image is rotated by 90 or 270 degrees through its EXIF orientation.
+         */
+        private float getLayoutRatio(int orientation) {
+            return orientation >= 5 && orientation <= 8 ? 1 / mCapture.ratio : mCapture.ratio;
+        }
+
+        /**
+         * Computes the centered crop matching an aspect ratio.
+         *
+         * @param ratio The aspect ratio in the pixel layout of the image
+         * @return The crop as {@code [x, y, width, height]}
+         */
+        private static int[] getCropRect(int originalWidth, int originalHeight, float ratio) {
+            // Calculate the desired crop dimensions
+            int desiredWidth = originalWidth;
+            int desiredHeight = (int) (originalWidth / ratio);
+
+            if (desiredHeight > originalHeight) {
+                desiredHeight = originalHeight;
+                desiredWidth = (int) (originalHeight * ratio);
+            }
+
+            // Calculate the starting points for cropping (centered)
+            int startX = (originalWidth - desiredWidth) / 2;
+            int startY = (originalHeight - desiredHeight) / 2;
+
+            return new int[]{startX, startY, desiredWidth, desiredHeight};
+        }
+
+        /**
+         * Crops the JPEG without decoding it, the crop origin is snapped to the MCU grid so it can
+         * be off-center by up to 15 pixels.
+         *
+         * @return The cropped JPEG, or {@code null} if the JPEG cannot be cropped losslessly
+         */
+        private ByteBuffer cropLossless(ByteBuffer buffer, int[] size, float ratio) {
+            int[] crop = getCropRect(size[0], size[1], ratio);
+            ByteBuffer jpeg = LosslessJpegCropper.crop(buffer, crop[0], crop[1], crop[2], crop[3]);
+            if (jpeg == null) {
+                Log.w(TAG, "Cannot crop picture losslessly, falling back to re-encoding");
+            }
+
+            return jpeg;
+        }
+    }
+
+    /**
+     * Saves a thumbnail of a picture, runs on the {@link EncodeExecutor}.
+     */
+    private static class ThumbnailSaver implements Runnable {
+        /**
+         * The thumbnail, already at its size, if grabbed from the viewfinder
+         */
+        private final Bitmap mBitmap;
+        /**
+         * The camera JPEG and the picture crop in it, if the picture was re-encoded, the saved
+         * {@link #mPicture} is decoded otherwise
+         */
+        private final byte[] mJpeg;
+        private final Rect mCrop;
+        private final PendingCapture mCapture;
+        private final File mPicture;
+        private final File mThumbnail;
+        private final int mWidth;
+        private final int mHeight;
+        private final Integer mQuality;
+        private final Camera2EventListeners mListeners;
+
+        public ThumbnailSaver(Bitmap bitmap, PendingCapture capture, Camera2EventListeners listeners) {
+            this(bitmap, null, null, capture, listeners);
+        }
+
+        public ThumbnailSaver(byte[] jpeg, Rect crop, PendingCapture capture, Camera2EventListeners listeners) {
+            this(null, jpeg, crop, capture, listeners);
+        }
+
+        private ThumbnailSaver(Bitmap bitmap, byte[] jpeg, Rect crop, PendingCapture capture, Camera2EventListeners listeners) {
+            mBitmap = bitmap;
+            mJpeg = jpeg;
+            mCrop = crop;
+            mCapture = capture;
+            mPicture = capture.picture;
+            mThumbnail = capture.thumbnail;
+            mWidth = capture.thumbnailWidth;
+            mHeight = capture.thumbnailHeight;
+            mQuality = capture.thumbnailQuality;
+            mListeners = listeners;
+        }
+
+        @Override
+        @SuppressWarnings({"CallToPrintStackTrace"})
+        public void run() {
+            Bitmap bitmap;
+            try {
+                bitmap = decode();
+            } catch (RuntimeException | OutOfMemoryError e) {
+                // The picture is saved all the same, only its thumbnail is missing
+                Log.e(TAG, "Cannot decode " + mPicture + " for its thumbnail", e);
+                return;
+            }
+            if (bitmap == null) {
+                Log.e(TAG, "Cannot decode " + mPicture + " for its thumbnail");
+                return;
+            }
+
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(mThumbnail);
+
+                bitmap.compress(Bitmap.CompressFormat.JPEG, mQuality == null ? 80 : mQuality, output);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Cannot write " + mThumbnail, e);
+                return;
+            } finally {
+                bitmap.recycle();
+                if (null != output) {
                     try {
-                        thumbnailOutput.close();
+                        output.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
             }
+
+            mListeners.onThumbnailWritten(mCapture, mThumbnail.length());
         }
 
+        /**
+         * Decodes the thumbnail at its size, straight from the smallest sufficient subsampling of
+         * the picture.
+         */
+        private Bitmap decode() {
+            if (mBitmap != null) {
+                return ThumbnailDecoder.scale(mBitmap, mWidth, mHeight);
+            }
+
+            if (mJpeg != null) {
+                Bitmap bitmap = ThumbnailDecoder.decodeRegion(mJpeg, mCrop, mWidth, mHeight);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+
+            return ThumbnailDecoder.decode(mPicture, mWidth, mHeight);
+        }
     }
 
     /**
@@ -5,14 +5,15 @@ import static android.Manifest.permission.CAMERA;
 import android.annotation.SuppressLint;
 import android.content.pm.ActivityInfo;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Point;
+import android.hardware.camera2.TotalCaptureResult;
 import android.os.Environment;
 import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.Range;
+import android.util.Rational;
 import android.util.TypedValue;
 import android.view.Display;
 import android.view.MotionEvent;
@@ -20,7 +21,6 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 
-import androidx.exifinterface.media.ExifInterface;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
 
@@ -34,10 +34,16 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @CapacitorPlugin(
         name = "Camera2",
@@ -48,6 +54,12 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
      * Tag for the {@link Log}.
      */
     private static final String TAG = "Camera2Plugin";
+
+    /**
+     * Most captures returned by a single {@code queryCaptures()} page.
+     */
+    private static final int MAX_QUERY_LIMIT = 1000;
+
     static final String CAMERA_PERMISSION_ALIAS = "camera";
     private final int containerViewId = 20;
     private int previousOrientationRequest = -1;
@@ -56,7 +68,8 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
     private DisplayMetrics metrics;
     private boolean toBack;
     private String startCallbackId;
-    private String captureCallbackId;
+    private final Map<Integer, String> captureCallbackIds = new ConcurrentHashMap<>();
+    private final Map<String, String> burstCallbackIds = new ConcurrentHashMap<>();
     private String setPIPPositionCallbackId;
 
     @PluginMethod
@@ -76,6 +89,8 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         final Integer paddingBottom = call.getInt("paddingBottom", 0);
         toBack = Boolean.TRUE.equals(call.getBoolean("toBack", false));
         final Boolean lockOrientation = call.getBoolean("lockAndroidOrientation", false);
+        final boolean sensorCrop = Boolean.TRUE.equals(call.getBoolean("sensorCrop", false));
+        final Integer zslMemoryBudgetMb = call.getInt("zslMemoryBudgetMb", 0);
 
         // It feels silly having to assert all of those despite providing default values everywhere...
         assert x != null;
@@ -88,6 +103,10 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         previousOrientationRequest = getBridge().getActivity().getRequestedOrientation();
 
         camera2 = new Camera2Fragment(this);
+        camera2.setSensorCrop(sensorCrop);
+        if (zslMemoryBudgetMb != null && zslMemoryBudgetMb > 0) {
+            camera2.setZslMemoryBudget(zslMemoryBudgetMb * 1024L * 1024L);
+        }
 
         bridge.getActivity().runOnUiThread(new Runnable() {
             @Override
@@ -171,6 +190,11 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         startCallbackId = null;
     }
 
+    public void onStartFailed(String message) {
+        rejectCallbackId(startCallbackId, message);
+        startCallbackId = null;
+    }
+
     @PluginMethod
     public void stop(PluginCall call) {
         bridge
@@ -206,26 +230,228 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
     public void capture(PluginCall call) {
         if (!isRunningOrReject(call)) return;
 
-        bridge.saveCall(call);
-        captureCallbackId = call.getCallbackId();
-
         String picturePath = call.getString("picturePath", "_tmp.jpg");
         String thumbnailPath = call.getString("thumbnailPath");
         Integer thumbnailWidth = call.getInt("thumbnailWidth");
         Integer thumbnailHeight = call.getInt("thumbnailHeight");
         Integer thumbnailQuality = call.getInt("thumbnailQuality", 80);
+        boolean losslessCrop = Boolean.TRUE.equals(call.getBoolean("losslessCrop", false));
+        boolean zsl = Boolean.TRUE.equals(call.getBoolean("zsl", false));
+        String thumbnailSource = call.getString("thumbnailSource", "picture");
 
+        PendingCapture capture;
         if (thumbnailPath != null && thumbnailWidth != null && thumbnailWidth > 0 && thumbnailHeight != null && thumbnailHeight > 0) {
-            camera2.takePicture(picturePath, thumbnailPath, thumbnailWidth, thumbnailHeight, thumbnailQuality);
+            capture = new PendingCapture(picturePath, thumbnailPath, thumbnailWidth, thumbnailHeight, thumbnailQuality, losslessCrop);
         } else {
-            camera2.takePicture(picturePath);
+            capture = new PendingCapture(picturePath, losslessCrop);
+        }
+        capture.zsl = zsl;
+        capture.previewThumbnail = "preview".equals(thumbnailSource);
+        setLockTimeouts(call, Collections.singletonList(capture));
+
+        // Each capture keeps its own call, so several of them can be in flight
+        bridge.saveCall(call);
+        captureCallbackIds.put(capture.id, call.getCallbackId());
+
+        if (!camera2.takePicture(capture)) {
+            captureCallbackIds.remove(capture.id);
+            bridge.releaseCall(call);
+            call.reject("Capture pipeline is saturated");
+        }
+    }
+
+    public void onShutter(PendingCapture capture) {
+        JSObject event = serializeCaptureEvent(capture);
+        event.put("shutterLagMs", capture.getShutterLagMs());
+
+        notifyListeners("shutter", event);
+    }
+
+    public void onJpegAvailable(PendingCapture capture, long size) {
+        JSObject event = serializeCaptureEvent(capture);
+        event.put("size", size);
+
+        notifyListeners("jpegAvailable", event);
+    }
+
+    public void onThumbnailWritten(PendingCapture capture, long size) {
+        JSObject event = serializeCaptureEvent(capture);
+        event.put("size", size);
+        event.put("path", capture.thumbnail.getAbsolutePath());
+
+        notifyListeners("thumbnailWritten", event);
+    }
+
+    public void onPictureWritten(PendingCapture capture, long size) {
+        JSObject event = serializeCaptureEvent(capture);
+        event.put("size", size);
+        event.put("path", capture.picture.getAbsolutePath());
+
+        notifyListeners("pictureWritten", event);
+
+        // Burst frames resolve along with their burst
+        if (capture.burst != null) {
+            return;
         }
 
+        JSObject result = new JSObject();
+        result.put("captureId", capture.id);
+        result.put("size", size);
+        result.put("width", capture.width);
+        result.put("height", capture.height);
+        result.put("shutterLagMs", capture.getShutterLagMs());
+        result.put("fastPath", capture.fastPath);
+        result.put("timedOut", serializeTimedOut(capture));
+        result.put("timings", capture.timings.toJSObject());
+
+        resolveCallbackId(captureCallbackIds.remove(capture.id), result);
     }
 
-    public void onCapture() {
-        resolveCallbackId(captureCallbackId);
-        captureCallbackId = null;
+    public void onCaptureFailed(int captureId, String message) {
+        rejectCallbackId(captureCallbackIds.remove(captureId), message);
+    }
+
+    @PluginMethod
+    public void captureBurst(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        Integer count = call.getInt("count", 0);
+        String picturePathPattern = call.getString("picturePathPattern");
+        String thumbnailPathPattern = call.getString("thumbnailPathPattern");
+        Integer thumbnailWidth = call.getInt("thumbnailWidth");
+        Integer thumbnailHeight = call.getInt("thumbnailHeight");
+        Integer thumbnailQuality = call.getInt("thumbnailQuality", 80);
+        boolean losslessCrop = Boolean.TRUE.equals(call.getBoolean("losslessCrop", false));
+
+        // Every frame holds an encoder slot until it is saved
+        int maxCount = EncodeExecutor.getInstance().getMaxPendingPictures();
+        if (count == null || count <= 0 || count > maxCount) {
+            call.reject("Count must be between 1 and " + maxCount + ".");
+            return;
+        }
+        if (!arePathPatternsValidOrReject(call, picturePathPattern, thumbnailPathPattern)) return;
+
+        PendingBurst burst = new PendingBurst(
+                count,
+                picturePathPattern,
+                thumbnailPathPattern,
+                thumbnailWidth,
+                thumbnailHeight,
+                thumbnailQuality,
+                losslessCrop
+        );
+
+        setLockTimeouts(call, burst.frames);
+        takeBurst(call, burst);
+    }
+
+    private void takeBurst(PluginCall call, PendingBurst burst) {
+        bridge.saveCall(call);
+        burstCallbackIds.put(burst.id, call.getCallbackId());
+
+        if (!camera2.takeBurst(burst)) {
+            burstCallbackIds.remove(burst.id);
+            bridge.releaseCall(call);
+            call.reject("Capture pipeline is saturated");
+        }
+    }
+
+    public void onBurstCaptured(PendingBurst burst) {
+        JSArray captureIds = new JSArray();
+        for (PendingCapture frame : burst.frames) {
+            captureIds.put(frame.id);
+        }
+
+        JSObject result = new JSObject();
+        result.put("burstId", burst.id);
+        result.put("captureIds", captureIds);
+        result.put("captured", burst.getCaptured());
+        result.put("dropped", burst.getDropped());
+        result.put("fps", burst.getFps());
+        result.put("durationMs", burst.getDurationMs());
+        result.put("timedOut", serializeTimedOut(burst.frames.get(0)));
+
+        resolveCallbackId(burstCallbackIds.remove(burst.id), result);
+    }
+
+    public void onBurstFailed(String burstId, String message) {
+        rejectCallbackId(burstCallbackIds.remove(burstId), message);
+    }
+
+    @PluginMethod
+    public void captureBracket(PluginCall call) throws JSONException {
+        if (!isRunningOrReject(call)) return;
+
+        String type = call.getString("type");
+        JSArray offsets = call.getArray("offsets");
+        String picturePathPattern = call.getString("picturePathPattern");
+        String thumbnailPathPattern = call.getString("thumbnailPathPattern");
+        Integer thumbnailWidth = call.getInt("thumbnailWidth");
+        Integer thumbnailHeight = call.getInt("thumbnailHeight");
+        Integer thumbnailQuality = call.getInt("thumbnailQuality", 80);
+        boolean losslessCrop = Boolean.TRUE.equals(call.getBoolean("losslessCrop", false));
+
+        int bracketType;
+        if ("exposure".equals(type)) {
+            bracketType = PendingCapture.BRACKET_EXPOSURE;
+        } else if ("iso".equals(type)) {
+            bracketType = PendingCapture.BRACKET_ISO;
+        } else if ("focus".equals(type)) {
+            bracketType = PendingCapture.BRACKET_FOCUS;
+        } else {
+            call.reject("Type must be one of exposure, iso or focus.");
+            return;
+        }
+
+        // Every frame holds an encoder slot until it is saved
+        int maxCount = EncodeExecutor.getInstance().getMaxPendingPictures();
+        if (offsets == null || offsets.length() == 0 || offsets.length() > maxCount) {
+            call.reject("Offsets must have between 1 and " + maxCount + " values.");
+            return;
+        }
+        if (!arePathPatternsValidOrReject(call, picturePathPattern, thumbnailPathPattern)) return;
+        if (!camera2.canBracket(bracketType)) {
+            call.reject(bracketType == PendingCapture.BRACKET_FOCUS
+                    ? "Focus bracketing is not supported by this camera."
+                    : "Exposure and ISO bracketing require a manual shutter speed and ISO.");
+            return;
+        }
+
+        float[] bracketOffsets = new float[offsets.length()];
+        for (int i = 0; i < bracketOffsets.length; i++) {
+            bracketOffsets[i] = (float) offsets.getDouble(i);
+        }
+
+        PendingBurst burst = new PendingBurst(
+                bracketOffsets.length,
+                picturePathPattern,
+                thumbnailPathPattern,
+                thumbnailWidth,
+                thumbnailHeight,
+                thumbnailQuality,
+                losslessCrop
+        );
+        burst.setBracket(bracketType, bracketOffsets);
+
+        setLockTimeouts(call, burst.frames);
+        takeBurst(call, burst);
+    }
+
+    @PluginMethod
+    public void getEncoderMetrics(PluginCall call) {
+        call.resolve(EncodeExecutor.getInstance().getMetrics());
+    }
+
+    @PluginMethod
+    public void getCaptureMetrics(PluginCall call) {
+        call.resolve(CaptureMetrics.getInstance().getMetrics());
+    }
+
+    @PluginMethod
+    public void getControlMetrics(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        call.resolve(camera2.getControlMetrics());
     }
 
     @PluginMethod
@@ -245,6 +471,81 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         call.resolve();
     }
 
+    @PluginMethod
+    public void lock3A(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        // Kept until the lock settles, frames later
+        bridge.saveCall(call);
+        final String callbackId = call.getCallbackId();
+
+        Pending3ALock lock = new Pending3ALock(new Pending3ALock.Listener() {
+            @Override
+            public void onLocked(Pending3ALock lock) {
+                JSArray timedOut = new JSArray();
+                if (lock.afTimedOut) timedOut.put("af");
+                if (lock.aeTimedOut) timedOut.put("ae");
+
+                JSObject result = new JSObject();
+                result.put("timedOut", timedOut);
+                resolveCallbackId(callbackId, result);
+            }
+
+            @Override
+            public void onFailed(String message) {
+                rejectCallbackId(callbackId, message);
+            }
+        });
+
+        Integer afTimeoutMs = call.getInt("afTimeoutMs");
+        Integer aeTimeoutMs = call.getInt("aeTimeoutMs");
+        if (afTimeoutMs != null && afTimeoutMs >= 0) lock.afTimeoutMs = afTimeoutMs;
+        if (aeTimeoutMs != null && aeTimeoutMs >= 0) lock.aeTimeoutMs = aeTimeoutMs;
+
+        if (!camera2.lock3A(lock)) {
+            // The lock was queued and the closing camera may fail it too, it only settles once
+            lock.onFailed("Camera is not running");
+        }
+    }
+
+    @PluginMethod
+    public void unlock3A(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        if (!camera2.unlock3A()) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getFocusRange(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        JSObject jsObject = new JSObject();
+        jsObject.put("value", serializeRangeToJSArray(new Range<>(0F, camera2.getMinimumFocusDistance())));
+
+        call.resolve(jsObject);
+    }
+
+    @PluginMethod
+    public void setFocus(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        Float focus = call.getFloat("value", -1F);
+
+        long sequence = -1;
+        if (focus != null) {
+            sequence = camera2.setFocus(focus);
+        }
+
+        JSObject result = new JSObject();
+        result.put("sequence", sequence);
+        call.resolve(result);
+    }
+
     @PluginMethod
     public void getShutterSpeedRange(PluginCall call) {
         if (!isRunningOrReject(call)) return;
@@ -268,11 +569,14 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
 
         Float shutterSpeedS = call.getFloat("value", -1F);
 
+        long sequence = -1;
         if (shutterSpeedS != null) {
-            camera2.setShutterSpeed((long) (shutterSpeedS < 0 ? shutterSpeedS : shutterSpeedS * 1_000_000_000L));
+            sequence = camera2.setShutterSpeed((long) (shutterSpeedS < 0 ? shutterSpeedS : shutterSpeedS * 1_000_000_000L));
         }
 
-        call.resolve();
+        JSObject result = new JSObject();
+        result.put("sequence", sequence);
+        call.resolve(result);
     }
 
     @PluginMethod
@@ -291,11 +595,14 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
 
         Float aperture = call.getFloat("value", -1F);
 
+        long sequence = -1;
         if (aperture != null) {
-            camera2.setAperture(aperture);
+            sequence = camera2.setAperture(aperture);
         }
 
-        call.resolve();
+        JSObject result = new JSObject();
+        result.put("sequence", sequence);
+        call.resolve(result);
     }
 
     @PluginMethod
@@ -314,11 +621,14 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
 
         Integer iso = call.getInt("value", -1);
 
+        long sequence = -1;
         if (iso != null) {
-            camera2.setIso(iso);
+            sequence = camera2.setIso(iso);
         }
 
-        call.resolve();
+        JSObject result = new JSObject();
+        result.put("sequence", sequence);
+        call.resolve(result);
     }
 
     @PluginMethod
@@ -332,17 +642,88 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         call.resolve(jsObject);
     }
 
+    @PluginMethod
+    public void getCapabilities(PluginCall call) throws JSONException {
+        if (!isRunningOrReject(call)) return;
+
+        JSObject jsObject = new JSObject();
+        jsObject.put("focus", serializeRangeToJSArray(new Range<>(0F, camera2.getMinimumFocusDistance())));
+
+        Range<Long> shutterSpeedRangeNs = camera2.getShutterSpeedRange();
+        jsObject.put("shutterSpeed", shutterSpeedRangeNs != null ? serializeRangeToJSArray(
+                new Range<>(
+                        shutterSpeedRangeNs.getLower() / 1_000_000_000F,
+                        shutterSpeedRangeNs.getUpper() / 1_000_000_000F
+                )
+        ) : null);
+
+        float[] apertures = camera2.getApertureRange();
+        jsObject.put("aperture", apertures != null ? serializeToJSArray(apertures) : null);
+
+        Range<Integer> isoRange = camera2.getIsoRange();
+        jsObject.put("iso", isoRange != null ? serializeRangeToJSArray(isoRange) : null);
+
+        Range<Integer> exposureCompensationRange = camera2.getExposureCompensationRange();
+        Rational exposureCompensationStep = camera2.getExposureCompensationStep();
+        JSObject exposureCompensation = new JSObject();
+        exposureCompensation.put("range", exposureCompensationRange != null ? serializeRangeToJSArray(exposureCompensationRange) : null);
+        exposureCompensation.put("step", exposureCompensationStep != null ? exposureCompensationStep.floatValue() : 0);
+        jsObject.put("exposureCompensation", exposureCompensation);
+
+        call.resolve(jsObject);
+    }
+
     @PluginMethod
     public void setExposureCompensation(PluginCall call) {
         if (!isRunningOrReject(call)) return;
 
         Integer exposureCompensation = call.getInt("value", 0);
 
+        long sequence = -1;
         if (exposureCompensation != null) {
-            camera2.setExposureCompensation(exposureCompensation);
+            sequence = camera2.setExposureCompensation(exposureCompensation);
         }
 
-        call.resolve();
+        JSObject result = new JSObject();
+        result.put("sequence", sequence);
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void setManualControls(PluginCall call) {
+        if (!isRunningOrReject(call)) return;
+
+        // Kept until a frame shows the controls applied
+        bridge.saveCall(call);
+        final String callbackId = call.getCallbackId();
+
+        ManualControls controls = new ManualControls(new ManualControls.Listener() {
+            @Override
+            public void onApplied(ManualControls controls, long frameNumber) {
+                JSObject result = new JSObject();
+                result.put("sequence", controls.sequence);
+                result.put("frameNumber", frameNumber);
+                resolveCallbackId(callbackId, result);
+            }
+
+            @Override
+            public void onFailed(String message) {
+                rejectCallbackId(callbackId, message);
+            }
+        });
+
+        Float shutterSpeedS = call.getFloat("shutterSpeed");
+        if (shutterSpeedS != null) {
+            controls.shutterSpeed = (long) (shutterSpeedS < 0 ? shutterSpeedS : shutterSpeedS * 1_000_000_000L);
+        }
+        controls.iso = call.getInt("iso");
+        controls.aperture = call.getFloat("aperture");
+        controls.exposureCompensation = call.getInt("exposureCompensation");
+        controls.focus = call.getFloat("focus");
+
+        if (camera2.setManualControls(controls) < 0) {
+            controls.onFailed("Camera is not running");
+        }
     }
 
     @PluginMethod
@@ -415,15 +796,20 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         setPIPPositionCallbackId = null;
     }
 
+    public void onControlsApplied(PendingControls controls, TotalCaptureResult result) {
+        notifyListeners("controlsApplied", controls.toJSObject(result));
+    }
+
     @PluginMethod
     public void pictureToThumbnail(PluginCall call) {
         String picture = call.getString("picture");
+        String path = call.getString("path");
         Integer width = call.getInt("width", 0);
         Integer height = call.getInt("height", 0);
         Integer quality = call.getInt("quality", 80);
 
-        if (picture == null) {
-            call.reject("Picture is required.");
+        if (picture == null && path == null) {
+            call.reject("Picture or path is required.");
             return;
         }
         if (width == null || width <= 0 || height == null || height <= 0) {
@@ -431,17 +817,26 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
             return;
         }
 
+        if (path != null) {
+            pathToThumbnail(call, new File(Environment.getExternalStorageDirectory(), path), width, height, quality == null ? 80 : quality);
+            return;
+        }
+
         try {
             // Decode base64 to Bitmap
             byte[] decodedString = Base64.decode(picture, Base64.DEFAULT);
-            Bitmap originalBitmap = BitmapFactory.decodeByteArray(decodedString, 0, decodedString.length);
 
-            // Resize the Bitmap
-            Bitmap resizedBitmap = Bitmap.createScaledBitmap(originalBitmap, width, height, true);
+            // Decoded straight at a fraction of its resolution, then resized
+            Bitmap resizedBitmap = ThumbnailDecoder.decode(decodedString, width, height);
+            if (resizedBitmap == null) {
+                call.reject("Cannot decode picture.");
+                return;
+            }
 
             // Convert Bitmap to base64
             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
             resizedBitmap.compress(Bitmap.CompressFormat.JPEG, quality == null ? 80 : quality, byteArrayOutputStream);
+            resizedBitmap.recycle();
             byte[] byteArray = byteArrayOutputStream.toByteArray();
             String resizedBase64String = Base64.encodeToString(byteArray, Base64.DEFAULT);
 
@@ -455,6 +850,110 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         }
     }
 
+    /**
+     * Thumbnails a picture on disk through the {@link ThumbnailCache}, off the plugin thread.
+     */
+    private void pathToThumbnail(PluginCall call, File file, int width, int height, int quality) {
+        ThumbnailCache cache = ThumbnailCache.getInstance(getContext());
+
+        EncodeExecutor.getInstance().execute(EncodeExecutor.PRIORITY_THUMBNAIL, new Runnable() {
+            @Override
+            public void run() {
+                byte[] thumbnail;
+                try {
+                    thumbnail = cache.get(file, width, height, quality);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    call.reject("Cannot thumbnail " + file + ": " + e.getMessage());
+                    return;
+                }
+                if (thumbnail == null) {
+                    call.reject("Cannot decode " + file + ".");
+                    return;
+                }
+
+                JSObject result = new JSObject();
+                result.put("thumbnail", Base64.encodeToString(thumbnail, Base64.DEFAULT));
+                call.resolve(result);
+            }
+        });
+    }
+
+    @PluginMethod
+    public void configureThumbnailCache(PluginCall call) {
+        Integer memoryBudgetMb = call.getInt("memoryBudgetMb");
+        Integer diskBudgetMb = call.getInt("diskBudgetMb");
+
+        if ((memoryBudgetMb != null && memoryBudgetMb <= 0) || (diskBudgetMb != null && diskBudgetMb < 0)) {
+            call.reject("Invalid memory or disk budget.");
+            return;
+        }
+
+        ThumbnailCache.getInstance(getContext()).configure(
+                memoryBudgetMb != null ? memoryBudgetMb * 1024L * 1024L : null,
+                diskBudgetMb != null ? diskBudgetMb * 1024L * 1024L : null
+        );
+
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getThumbnailCacheMetrics(PluginCall call) {
+        call.resolve(ThumbnailCache.getInstance(getContext()).getMetrics());
+    }
+
+    @PluginMethod
+    public void clearThumbnailCache(PluginCall call) {
+        ThumbnailCache.getInstance(getContext()).clear();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void thumbnailsFromFiles(PluginCall call) throws JSONException {
+        JSArray items = call.getArray("items");
+
+        if (items == null) {
+            call.reject("Items are required.");
+            return;
+        }
+
+        List<ThumbnailBatch.Item> batchItems = new ArrayList<>(items.length());
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            String path = item.optString("path", null);
+            String outPath = item.optString("outPath", null);
+            int width = item.optInt("width", 0);
+            int height = item.optInt("height", 0);
+            int quality = item.optInt("quality", 80);
+
+            if (path == null || outPath == null) {
+                call.reject("Item " + i + ": path and outPath are required.");
+                return;
+            }
+            if (width <= 0 || height <= 0) {
+                call.reject("Item " + i + ": invalid width or height.");
+                return;
+            }
+
+            batchItems.add(new ThumbnailBatch.Item(
+                    new File(Environment.getExternalStorageDirectory(), path),
+                    new File(Environment.getExternalStorageDirectory(), outPath),
+                    width,
+                    height,
+                    quality
+            ));
+        }
+
+        bridge.saveCall(call);
+        final String callbackId = call.getCallbackId();
+
+        new ThumbnailBatch(batchItems, ThumbnailCache.getInstance(getContext()), new ThumbnailBatch.Listener() {
+            @Override
+            public void onBatchDone(ThumbnailBatch batch) {
+                resolveCallbackId(callbackId, batch.toJSObject());
+            }
+        }).start();
+    }
+
     @PluginMethod
     public void getExifData(PluginCall call) {
         String path = call.getString("path");
@@ -467,28 +966,121 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         File file = new File(Environment.getExternalStorageDirectory(), path);
 
         try {
-            JSObject result = new JSObject();
+            call.resolve(ExifReader.getInstance().read(file));
+        } catch (IOException | RuntimeException e) {
+            call.reject("Error reading EXIF data: " + e.getMessage());
+        }
+    }
 
-            ExifInterface exif = new ExifInterface(file.getAbsoluteFile());
+    @PluginMethod
+    public void getExifDataBatch(PluginCall call) throws JSONException {
+        JSArray paths = call.getArray("paths");
 
-            String iso = exif.getAttribute(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY);
-            result.put("iso", iso != null ? Integer.valueOf(iso) : null);
+        if (paths == null) {
+            call.reject("Paths are required.");
+            return;
+        }
 
-            String shutterSpeed = exif.getAttribute(ExifInterface.TAG_EXPOSURE_TIME);
-            result.put("shutterSpeed", shutterSpeed != null ? Float.parseFloat(shutterSpeed) : null);
+        List<File> files = new ArrayList<>(paths.length());
+        for (int i = 0; i < paths.length(); i++) {
+            files.add(new File(Environment.getExternalStorageDirectory(), paths.getString(i)));
+        }
 
-            String aperture = exif.getAttribute(ExifInterface.TAG_F_NUMBER);
-            result.put("aperture", aperture != null ? Float.parseFloat(aperture) : null);
+        bridge.saveCall(call);
+        final String callbackId = call.getCallbackId();
 
-            String focalLength = exif.getAttribute(ExifInterface.TAG_MAKER_NOTE);
-            result.put("focalLength", focalLength != null ? Float.parseFloat(focalLength) : null);
+        ExifReader.getInstance().readAll(files, new ExifReader.Listener() {
+            @Override
+            public void onRead(JSArray results) {
+                JSObject result = new JSObject();
+                result.put("items", results);
+                resolveCallbackId(callbackId, result);
+            }
+        });
+    }
 
-            call.resolve(result);
-        } catch (IOException e) {
-            call.reject("Error reading EXIF data: " + e.getMessage());
+    @PluginMethod
+    public void getExifCacheMetrics(PluginCall call) {
+        call.resolve(ExifReader.getInstance().getMetrics());
+    }
+
+    @PluginMethod
+    public void queryCaptures(PluginCall call) {
+        Integer limit = call.getInt("limit", 100);
+        Integer offset = call.getInt("offset", 0);
+        Double capturedAfter = call.getDouble("capturedAfter");
+        Double capturedBefore = call.getDouble("capturedBefore");
+        String order = call.getString("order", "desc");
+
+        if (limit == null || limit <= 0 || limit > MAX_QUERY_LIMIT) {
+            call.reject("Limit must be between 1 and " + MAX_QUERY_LIMIT + ".");
+            return;
+        }
+        if (offset == null || offset < 0) {
+            call.reject("Invalid offset.");
+            return;
+        }
+
+        CaptureCatalog.Query query = new CaptureCatalog.Query();
+        query.limit = limit;
+        query.offset = offset;
+        query.capturedAfter = capturedAfter != null ? capturedAfter.longValue() : null;
+        query.capturedBefore = capturedBefore != null ? capturedBefore.longValue() : null;
+        query.minIso = call.getInt("minIso");
+        query.maxIso = call.getInt("maxIso");
+        query.burstId = call.getString("burstId");
+        query.ascending = "asc".equals(order);
+
+        try {
+            call.resolve(CaptureCatalog.getInstance(getContext()).query(query));
+        } catch (RuntimeException e) {
+            call.reject("Error querying captures: " + e.getMessage());
         }
     }
 
+    private JSObject serializeCaptureEvent(PendingCapture capture) {
+        JSObject event = new JSObject();
+        event.put("captureId", capture.id);
+        if (capture.burst != null) {
+            event.put("burstId", capture.burst.id);
+        }
+
+        return event;
+    }
+
+    private void setLockTimeouts(PluginCall call, List<PendingCapture> captures) {
+        Integer afTimeoutMs = call.getInt("afTimeoutMs");
+        Integer aeTimeoutMs = call.getInt("aeTimeoutMs");
+
+        for (PendingCapture capture : captures) {
+            if (afTimeoutMs != null && afTimeoutMs >= 0) capture.afTimeoutMs = afTimeoutMs;
+            if (aeTimeoutMs != null && aeTimeoutMs >= 0) capture.aeTimeoutMs = aeTimeoutMs;
+        }
+    }
+
+    private JSArray serializeTimedOut(PendingCapture capture) {
+        JSArray jsArray = new JSArray();
+
+        if (capture.afTimedOut) jsArray.put("af");
+        if (capture.aeTimedOut) jsArray.put("ae");
+
+        return jsArray;
+    }
+
+    @SuppressWarnings("BooleanMethodIsAlwaysInverted")
+    private boolean arePathPatternsValidOrReject(PluginCall call, String picturePathPattern, String thumbnailPathPattern) {
+        if (picturePathPattern == null || !picturePathPattern.contains(PendingBurst.INDEX_PLACEHOLDER)) {
+            call.reject("Picture path pattern must contain " + PendingBurst.INDEX_PLACEHOLDER + ".");
+            return false;
+        }
+        if (thumbnailPathPattern != null && !thumbnailPathPattern.contains(PendingBurst.INDEX_PLACEHOLDER)) {
+            call.reject("Thumbnail path pattern must contain " + PendingBurst.INDEX_PLACEHOLDER + ".");
+            return false;
+        }
+
+        return true;
+    }
+
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private boolean isRunningOrReject(PluginCall call) {
         if (!isRunning()) {
@@ -553,6 +1145,15 @@ public class Camera2Plugin extends Plugin implements Camera2Fragment.Camera2Even
         bridge.releaseCall(pluginCall);
     }
 
+    private void rejectCallbackId(String callbackId, String message) {
+        if (callbackId == null) return;
+
+        PluginCall pluginCall = bridge.getSavedCall(callbackId);
+        pluginCall.reject(message);
+
+        bridge.releaseCall(pluginCall);
+    }
+
     private boolean isRunning() {
         return camera2 != null;
     }
@@ -0,0 +1,109 @@
+package com.lihbr.plugins.camera2;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Camera IDs and characteristics, along with the sizes derived from them, kept for the lifetime
+ * of the process. Both are binder calls into the camera service and never change for a given
+ * camera, so opening the camera again or loading the settings doesn't ask for them again.
+ * External cameras connected after the first lookup aren't listed until the app restarts.
+ */
+final class CameraCharacteristicsCache {
+    static final class Entry {
+        final String cameraId;
+        final CameraCharacteristics characteristics;
+
+        /**
+         * {@code null} if the camera has no stream configurations
+         */
+        final StreamConfigurationMap map;
+
+        /**
+         * Output sizes and largest output size, empty and {@code null} without {@link #map}
+         */
+        final Size[] jpegSizes;
+        final Size[] previewSizes;
+        final Size largestJpegSize;
+
+        /**
+         * Preview sizes already chosen, by {@link #getPreviewSizeKey}
+         */
+        private final Map<String, Size> mChosenPreviewSizes = new ConcurrentHashMap<>();
+
+        private Entry(String cameraId, CameraCharacteristics characteristics) {
+            this.cameraId = cameraId;
+            this.characteristics = characteristics;
+            this.map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+            Size[] jpegSizes = map != null ? map.getOutputSizes(ImageFormat.JPEG) : null;
+            Size[] previewSizes = map != null ? map.getOutputSizes(SurfaceTexture.class) : null;
+            this.jpegSizes = jpegSizes != null ? jpegSizes : new Size[0];
+            this.previewSizes = previewSizes != null ? previewSizes : new Size[0];
+            this.largestJpegSize = this.jpegSizes.length > 0
+                    ? Collections.max(Arrays.asList(this.jpegSizes), new Camera2Fragment.CompareSizesByArea())
+                    : null;
+        }
+
+        /**
+         * @return The preview size chosen before for the same viewfinder and display bounds,
+         * {@code null} if none was
+         */
+        Size getChosenPreviewSize(int width, int height, int maxWidth, int maxHeight) {
+            return mChosenPreviewSizes.get(getPreviewSizeKey(width, height, maxWidth, maxHeight));
+        }
+
+        void putChosenPreviewSize(int width, int height, int maxWidth, int maxHeight, Size size) {
+            mChosenPreviewSizes.put(getPreviewSizeKey(width, height, maxWidth, maxHeight), size);
+        }
+
+        private static String getPreviewSizeKey(int width, int height, int maxWidth, int maxHeight) {
+            return width + "x" + height + "/" + maxWidth + "x" + maxHeight;
+        }
+    }
+
+    private static CameraCharacteristicsCache sInstance;
+
+    private String[] mCameraIds;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    static synchronized CameraCharacteristicsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new CameraCharacteristicsCache();
+        }
+
+        return sInstance;
+    }
+
+    private CameraCharacteristicsCache() {
+    }
+
+    synchronized String[] getCameraIdList(CameraManager manager) throws CameraAccessException {
+        if (mCameraIds == null) {
+            mCameraIds = manager.getCameraIdList();
+        }
+
+        return mCameraIds.clone();
+    }
+
+    synchronized Entry get(CameraManager manager, String cameraId) throws CameraAccessException {
+        Entry entry = mEntries.get(cameraId);
+        if (entry == null) {
+            entry = new Entry(cameraId, manager.getCameraCharacteristics(cameraId));
+            mEntries.put(cameraId, entry);
+        }
+
+        return entry;
+    }
+}
@@ -0,0 +1,232 @@
+package com.lihbr.plugins.camera2;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.hardware.camera2.CaptureResult;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An SQLite catalog of saved pictures along with the exposure they were captured with, so
+ * sessions can be listed with a single indexed query instead of opening every file.
+ * <p>
+ * Entries are written by the save pipeline once a picture is on disk, from the
+ * {@link EncodeExecutor} workers, the database being in write-ahead logging mode so queries
+ * don't wait for them.
+ */
+final class CaptureCatalog extends SQLiteOpenHelper {
+    /**
+     * Filters and paging of {@link #query(Query)}, {@code null} filters are ignored.
+     */
+    static final class Query {
+        Long capturedAfter;
+        Long capturedBefore;
+        Integer minIso;
+        Integer maxIso;
+        String burstId;
+        boolean ascending;
+        int limit = 100;
+        int offset;
+    }
+
+    private static final String TAG = "CaptureCatalog";
+    private static final String DATABASE_NAME = "camera2-captures.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "captures";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_THUMBNAIL_PATH = "thumbnail_path";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_CAPTURED_AT = "captured_at";
+    private static final String COLUMN_ISO = "iso";
+    private static final String COLUMN_EXPOSURE_TIME = "exposure_time";
+    private static final String COLUMN_APERTURE = "aperture";
+    private static final String COLUMN_FOCAL_LENGTH = "focal_length";
+    private static final String COLUMN_BURST_ID = "burst_id";
+
+    private static final String[] COLUMNS = {
+            COLUMN_ID,
+            COLUMN_PATH,
+            COLUMN_THUMBNAIL_PATH,
+            COLUMN_SIZE,
+            COLUMN_CAPTURED_AT,
+            COLUMN_ISO,
+            COLUMN_EXPOSURE_TIME,
+            COLUMN_APERTURE,
+            COLUMN_FOCAL_LENGTH,
+            COLUMN_BURST_ID
+    };
+
+    private static CaptureCatalog sInstance;
+
+    static synchronized CaptureCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CaptureCatalog(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    private CaptureCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        createTable(db);
+        createIndexes(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // Version 1 burst IDs restarted with the app, they can't tell bursts apart and are
+            // dropped while the column becomes text
+            String previous = TABLE + "_v1";
+            dropIndexes(db);
+            db.execSQL("ALTER TABLE " + TABLE + " RENAME TO " + previous);
+            createTable(db);
+            String columns = TextUtils.join(", ", Arrays.copyOf(COLUMNS, COLUMNS.length - 1));
+            db.execSQL("INSERT INTO " + TABLE + " (" + columns + ") SELECT " + columns + " FROM " + previous);
+            db.execSQL("DROP TABLE " + previous);
+            createIndexes(db);
+        }
+    }
+
+    private static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                + COLUMN_THUMBNAIL_PATH + " TEXT, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_CAPTURED_AT + " INTEGER NOT NULL, "
+                + COLUMN_ISO + " INTEGER, "
+                + COLUMN_EXPOSURE_TIME + " INTEGER, "
+                + COLUMN_APERTURE + " REAL, "
+                + COLUMN_FOCAL_LENGTH + " REAL, "
+                + COLUMN_BURST_ID + " TEXT)");
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_CAPTURED_AT + " ON " + TABLE + " (" + COLUMN_CAPTURED_AT + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_ISO + " ON " + TABLE + " (" + COLUMN_ISO + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_BURST_ID + " ON " + TABLE + " (" + COLUMN_BURST_ID + ")");
+    }
+
+    private static void dropIndexes(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_" + COLUMN_CAPTURED_AT);
+        db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_" + COLUMN_ISO);
+        db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_" + COLUMN_BURST_ID);
+    }
+
+    /**
+     * Records a saved picture, replacing any previous entry for the same path.
+     *
+     * @param size   Bytes written
+     * @param result The capture result the picture was matched with
+     */
+    void insert(PendingCapture capture, long size, CaptureResult result) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, capture.picture.getAbsolutePath());
+        values.put(COLUMN_THUMBNAIL_PATH, capture.hasThumbnail() ? capture.thumbnail.getAbsolutePath() : null);
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_CAPTURED_AT, getCapturedAt(capture));
+        values.put(COLUMN_ISO, result.get(CaptureResult.SENSOR_SENSITIVITY));
+        values.put(COLUMN_EXPOSURE_TIME, result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+        values.put(COLUMN_APERTURE, result.get(CaptureResult.LENS_APERTURE));
+        values.put(COLUMN_FOCAL_LENGTH, result.get(CaptureResult.LENS_FOCAL_LENGTH));
+        values.put(COLUMN_BURST_ID, capture.burst != null ? capture.burst.id : null);
+
+        try {
+            getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (RuntimeException e) {
+            // The picture is saved all the same
+            Log.e(TAG, "Cannot catalog " + capture.picture + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wall clock time of the exposure, or of the shutter press if it wasn't recorded, in
+     * milliseconds since the epoch.
+     */
+    private static long getCapturedAt(PendingCapture capture) {
+        long capturedAt = capture.exposedAt >= 0 ? capture.exposedAt : capture.requestedAt;
+        return System.currentTimeMillis() - (SystemClock.elapsedRealtimeNanos() - capturedAt) / 1_000_000;
+    }
+
+    /**
+     * A page of entries, most recent first unless {@link Query#ascending}, along with the number
+     * of entries matching the filters.
+     */
+    JSObject query(Query query) {
+        List<String> selection = new ArrayList<>();
+        List<String> selectionArgs = new ArrayList<>();
+        addFilter(selection, selectionArgs, COLUMN_CAPTURED_AT + " >= ?", query.capturedAfter);
+        addFilter(selection, selectionArgs, COLUMN_CAPTURED_AT + " < ?", query.capturedBefore);
+        addFilter(selection, selectionArgs, COLUMN_ISO + " >= ?", query.minIso);
+        addFilter(selection, selectionArgs, COLUMN_ISO + " <= ?", query.maxIso);
+        addFilter(selection, selectionArgs, COLUMN_BURST_ID + " = ?", query.burstId);
+
+        String where = selection.isEmpty() ? null : TextUtils.join(" AND ", selection);
+        String[] whereArgs = selectionArgs.toArray(new String[0]);
+        String orderBy = COLUMN_CAPTURED_AT + (query.ascending ? " ASC, " : " DESC, ")
+                + COLUMN_ID + (query.ascending ? " ASC" : " DESC");
+
+        SQLiteDatabase db = getReadableDatabase();
+        JSArray items = new JSArray();
+        try (Cursor cursor = db.query(TABLE, COLUMNS, where, whereArgs, null, null, orderBy, query.offset + "," + query.limit)) {
+            while (cursor.moveToNext()) {
+                items.put(toJSObject(cursor));
+            }
+        }
+
+        JSObject result = new JSObject();
+        result.put("items", items);
+        result.put("total", count(db, where, whereArgs));
+
+        return result;
+    }
+
+    private static void addFilter(List<String> selection, List<String> selectionArgs, String clause, Object value) {
+        if (value != null) {
+            selection.add(clause);
+            selectionArgs.add(String.valueOf(value));
+        }
+    }
+
+    private static long count(SQLiteDatabase db, String where, String[] whereArgs) {
+        try (Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE + (where != null ? " WHERE " + where : ""), whereArgs)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    private static JSObject toJSObject(Cursor cursor) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("id", cursor.getLong(0));
+        jsObject.put("path", cursor.getString(1));
+        jsObject.put("thumbnailPath", cursor.getString(2));
+        jsObject.put("size", cursor.getLong(3));
+        jsObject.put("capturedAt", cursor.getLong(4));
+        jsObject.put("iso", cursor.isNull(5) ? null : cursor.getInt(5));
+        // Seconds, like getExifData()
+        jsObject.put("shutterSpeed", cursor.isNull(6) ? null : cursor.getLong(6) / 1_000_000_000.0);
+        jsObject.put("aperture", cursor.isNull(7) ? null : cursor.getDouble(7));
+        jsObject.put("focalLength", cursor.isNull(8) ? null : cursor.getDouble(8));
+        jsObject.put("burstId", cursor.getString(9));
+
+        return jsObject;
+    }
+}
@@ -0,0 +1,104 @@
+package com.lihbr.plugins.camera2;
+
+import com.getcapacitor.JSObject;
+
+import java.util.Arrays;
+
+/**
+ * Rolling latency percentiles of the capture pipeline stages, over the most recent saved
+ * captures, to compare devices and catch regressions.
+ */
+final class CaptureMetrics {
+    /**
+     * Captures the percentiles are computed over.
+     */
+    private static final int WINDOW = 200;
+
+    /**
+     * Index of the total in the sample rings, after the stages.
+     */
+    private static final int TOTAL = CaptureTimings.STAGE_NAMES.length;
+
+    private static CaptureMetrics sInstance;
+
+    /**
+     * A ring of samples per stage, stages that were skipped don't get one.
+     */
+    private final double[][] mSamples = new double[TOTAL + 1][WINDOW];
+    private final int[] mCounts = new int[TOTAL + 1];
+    private final int[] mNext = new int[TOTAL + 1];
+    private long mRecorded;
+
+    static synchronized CaptureMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new CaptureMetrics();
+        }
+
+        return sInstance;
+    }
+
+    private CaptureMetrics() {
+    }
+
+    /**
+     * Records the stages of a capture, once it has been saved.
+     */
+    synchronized void record(CaptureTimings timings) {
+        for (int stage = 1; stage < TOTAL; stage++) {
+            double stageMs = timings.getStageMs(stage);
+            if (stageMs >= 0) {
+                add(stage, stageMs);
+            }
+        }
+        add(TOTAL, timings.getTotalMs());
+        mRecorded++;
+    }
+
+    synchronized JSObject getMetrics() {
+        JSObject metrics = new JSObject();
+        metrics.put("captures", mRecorded);
+        metrics.put("window", WINDOW);
+
+        JSObject stages = new JSObject();
+        for (int stage = 1; stage < TOTAL; stage++) {
+            if (mCounts[stage] > 0) {
+                stages.put(CaptureTimings.STAGE_NAMES[stage], getPercentiles(stage));
+            }
+        }
+        metrics.put("stages", stages);
+        metrics.put("total", getPercentiles(TOTAL));
+
+        return metrics;
+    }
+
+    private void add(int stage, double stageMs) {
+        mSamples[stage][mNext[stage]] = stageMs;
+        mNext[stage] = (mNext[stage] + 1) % WINDOW;
+        mCounts[stage] = Math.min(mCounts[stage] + 1, WINDOW);
+    }
+
+    private JSObject getPercentiles(int stage) {
+        double[] samples = Arrays.copyOf(mSamples[stage], mCounts[stage]);
+        Arrays.sort(samples);
+
+        JSObject percentiles = new JSObject();
+        percentiles.put("count", samples.length);
+        percentiles.put("p50", getPercentile(samples, 50));
+        percentiles.put("p95", getPercentile(samples, 95));
+        percentiles.put("p99", getPercentile(samples, 99));
+
+        return percentiles;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted samples, 0 if there are none.
+     */
+    private static double getPercentile(double[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,135 @@
+package com.lihbr.plugins.camera2;
+
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Pairs still images with the {@link TotalCaptureResult} they were captured with, using the
+ * sensor timestamp both of them carry. Images and results are given along with their timestamp,
+ * {@link android.media.Image#getTimestamp()} and
+ * {@link android.hardware.camera2.CaptureResult#SENSOR_TIMESTAMP}.
+ * <p>
+ * Images and results come in from different callbacks in no particular order. Whichever comes
+ * first waits in a map keyed by timestamp until its counterpart shows up, claiming a slot with
+ * {@link ConcurrentSkipListMap#putIfAbsent} so no lock is needed. At most {@link #MAX_PENDING} of
+ * them wait, the oldest ones are dropped beyond that: images are closed so the
+ * {@link android.media.ImageReader} doesn't run out of buffers.
+ */
+final class CaptureResultMatcher<I extends AutoCloseable, R> {
+    interface Listener<I, R> {
+        /**
+         * An image and its result have been paired, the listener owns the image.
+         */
+        void onMatched(I image, R result);
+
+        /**
+         * A result has been waiting too long for its image, which won't come anymore.
+         */
+        void onResultDropped(R result);
+    }
+
+    /**
+     * An image waiting in {@link #mPending}, telling it apart from results.
+     */
+    private static final class PendingImage<I> {
+        final I image;
+
+        PendingImage(I image) {
+            this.image = image;
+        }
+    }
+
+    private static final String TAG = "CaptureResultMatcher";
+
+    /**
+     * Images and results allowed to wait for their counterpart.
+     */
+    static final int MAX_PENDING = 16;
+
+    private final Listener<I, R> mListener;
+    private final ConcurrentSkipListMap<Long, Object> mPending = new ConcurrentSkipListMap<>();
+
+    CaptureResultMatcher(Listener<I, R> listener) {
+        mListener = listener;
+    }
+
+    void onImage(I image, long timestamp) {
+        match(timestamp, new PendingImage<>(image));
+    }
+
+    /**
+     * @param timestamp {@code null} if the result has none, it is dropped then
+     */
+    void onResult(R result, Long timestamp) {
+        if (timestamp == null) {
+            Log.w(TAG, "Capture result has no sensor timestamp");
+            mListener.onResultDropped(result);
+            return;
+        }
+
+        match(timestamp, result);
+    }
+
+    /**
+     * Drops everything still waiting, the camera is going away.
+     */
+    void clear() {
+        Map.Entry<Long, Object> entry;
+        while ((entry = mPending.pollFirstEntry()) != null) {
+            drop(entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void match(long timestamp, Object item) {
+        Object other = mPending.putIfAbsent(timestamp, item);
+        if (other == null) {
+            trim();
+            return;
+        }
+
+        // Only one of the callbacks can remove the pair, the other one finds it gone
+        if (!mPending.remove(timestamp, other)) {
+            match(timestamp, item);
+            return;
+        }
+
+        boolean isImage = item instanceof PendingImage;
+        if (isImage != other instanceof PendingImage) {
+            PendingImage<I> image = (PendingImage<I>) (isImage ? item : other);
+            mListener.onMatched(image.image, (R) (isImage ? other : item));
+        } else {
+            Log.w(TAG, "Duplicate sensor timestamp " + timestamp);
+            drop(other);
+            match(timestamp, item);
+        }
+    }
+
+    private void trim() {
+        while (mPending.size() > MAX_PENDING) {
+            Map.Entry<Long, Object> oldest = mPending.pollFirstEntry();
+            if (oldest == null) {
+                return;
+            }
+
+            Log.w(TAG, "Nothing matched sensor timestamp " + oldest.getKey() + ", dropping it");
+            drop(oldest.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drop(Object item) {
+        if (item instanceof PendingImage) {
+            try {
+                ((PendingImage<I>) item).image.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot close image: " + e.getMessage());
+            }
+        } else {
+            mListener.onResultDropped((R) item);
+        }
+    }
+}
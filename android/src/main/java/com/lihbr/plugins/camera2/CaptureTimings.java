@@ -0,0 +1,129 @@
+package com.lihbr.plugins.camera2;
+
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic timestamps of a capture going through the pipeline, from the {@code capture()} call
+ * to its file being closed. Stages are marked from the camera background thread and the
+ * {@link EncodeExecutor}, skipped ones stay unset.
+ * <p>
+ * Each stage is reported as the time since the latest stage before it that has been marked, so
+ * the durations of a capture add up to its total.
+ */
+final class CaptureTimings {
+    static final int REQUESTED = 0;
+    static final int AF_TRIGGERED = 1;
+    static final int AF_LOCKED = 2;
+    static final int PRECAPTURE_STARTED = 3;
+    static final int PRECAPTURE_DONE = 4;
+    static final int STILL_SUBMITTED = 5;
+    static final int CAPTURE_COMPLETED = 6;
+
+    /**
+     * The image is handed to the saver, once it has been paired with its capture result
+     */
+    static final int IMAGE_AVAILABLE = 7;
+    static final int DECODED = 8;
+    static final int CROPPED = 9;
+    static final int ENCODED = 10;
+    static final int EXIF_BUILT = 11;
+    static final int WRITTEN = 12;
+    static final int FILE_CLOSED = 13;
+
+    static final String[] STAGE_NAMES = {
+            "requested",
+            "afTriggered",
+            "afLocked",
+            "precaptureStarted",
+            "precaptureDone",
+            "stillSubmitted",
+            "captureCompleted",
+            "imageAvailable",
+            "decoded",
+            "cropped",
+            "encoded",
+            "exifBuilt",
+            "written",
+            "fileClosed"
+    };
+
+    private static final long UNSET = -1;
+
+    /**
+     * Stage timestamps, in the {@link SystemClock#elapsedRealtimeNanos()} time base
+     */
+    private final AtomicLongArray mTimes = new AtomicLongArray(STAGE_NAMES.length);
+
+    CaptureTimings(long requestedAt) {
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            mTimes.set(stage, UNSET);
+        }
+        mTimes.set(REQUESTED, requestedAt);
+    }
+
+    void mark(int stage) {
+        mark(stage, SystemClock.elapsedRealtimeNanos());
+    }
+
+    void mark(int stage, long time) {
+        mTimes.set(stage, time);
+    }
+
+    boolean isMarked(int stage) {
+        return mTimes.get(stage) != UNSET;
+    }
+
+    /**
+     * Time spent reaching a stage from the previous marked one, {@code -1} if it wasn't marked.
+     * Stages don't always happen in order, an image can come in before its capture result, so
+     * durations are never negative.
+     */
+    double getStageMs(int stage) {
+        long time = mTimes.get(stage);
+        if (stage == REQUESTED || time == UNSET) {
+            return -1;
+        }
+
+        for (int previous = stage - 1; previous >= 0; previous--) {
+            long previousTime = mTimes.get(previous);
+            if (previousTime != UNSET) {
+                return Math.max(0, time - previousTime) / 1_000_000.0;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Time from the {@code capture()} call to the latest marked stage.
+     */
+    double getTotalMs() {
+        long latest = mTimes.get(REQUESTED);
+        for (int stage = 1; stage < STAGE_NAMES.length; stage++) {
+            latest = Math.max(latest, mTimes.get(stage));
+        }
+
+        return (latest - mTimes.get(REQUESTED)) / 1_000_000.0;
+    }
+
+    /**
+     * The stages marked so far, by name, along with the total.
+     */
+    JSObject toJSObject() {
+        JSObject jsObject = new JSObject();
+
+        for (int stage = 1; stage < STAGE_NAMES.length; stage++) {
+            double stageMs = getStageMs(stage);
+            if (stageMs >= 0) {
+                jsObject.put(STAGE_NAMES[stage], stageMs);
+            }
+        }
+        jsObject.put("total", getTotalMs());
+
+        return jsObject;
+    }
+}
@@ -0,0 +1,96 @@
+package com.lihbr.plugins.camera2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges {@link ManualControls} updates until they can go out with a single repeating request
+ * update: at most one per delivered frame, and none while a still capture goes through the lock
+ * and capture stages, whose one-shot trigger requests and stopped repeating request must not be
+ * disturbed.
+ * <p>
+ * Updates are added from any thread, taken from the camera background thread only.
+ */
+final class ControlsCoalescer {
+    /**
+     * Merged controls, and the updates waiting on them in the order they were added.
+     */
+    static final class Batch {
+        final ManualControls controls;
+        final List<ManualControls> listeners;
+
+        private Batch(ManualControls controls, List<ManualControls> listeners) {
+            this.controls = controls;
+            this.listeners = Collections.unmodifiableList(listeners);
+        }
+    }
+
+    /**
+     * Only accessed while holding the lock on this
+     */
+    private ManualControls mPending;
+    private final List<ManualControls> mListeners = new ArrayList<>();
+
+    /**
+     * Whether a repeating request update was submitted and no frame was delivered since. Only
+     * accessed from the background thread.
+     */
+    private boolean mInFlight;
+
+    /**
+     * Merges an update into the pending one.
+     *
+     * @return {@code true} if nothing was pending, the caller should schedule a flush
+     */
+    synchronized boolean add(ManualControls controls) {
+        boolean first = mPending == null;
+        if (first) {
+            mPending = new ManualControls(null);
+        }
+        mPending.merge(controls);
+        if (controls.hasListener()) {
+            mListeners.add(controls);
+        }
+
+        return first;
+    }
+
+    /**
+     * Takes the pending update if it can go out now.
+     *
+     * @param capturing Whether a still capture is going through the lock and capture stages, the
+     *                  update then waits for it to finish
+     * @return {@code null} if nothing is pending or it has to wait
+     */
+    Batch poll(boolean capturing) {
+        if (mInFlight || capturing) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (mPending == null) {
+                return null;
+            }
+
+            Batch batch = new Batch(mPending, new ArrayList<>(mListeners));
+            mPending = null;
+            mListeners.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * A repeating request update went out, the next one waits for a frame.
+     */
+    void onSubmitted() {
+        mInFlight = true;
+    }
+
+    /**
+     * A preview frame was delivered or failed, or a new session started.
+     */
+    void onFrame() {
+        mInFlight = false;
+    }
+}
@@ -0,0 +1,249 @@
+package com.lihbr.plugins.camera2;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.getcapacitor.JSObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded worker pool for decoding, encoding, thumbnailing and file I/O, kept off the camera
+ * {@link android.os.HandlerThread} so slow saves don't stall the capture state machine.
+ * <p>
+ * Tasks are run by priority, thumbnails first and batch work on files last, then in submission
+ * order. Full resolution work is
+ * admission controlled: callers reserve a slot with {@link #tryReservePicture()} before starting
+ * a capture and give it back with {@link #releasePicture()} once it is saved, captures being
+ * refused while the pool is saturated.
+ */
+final class EncodeExecutor {
+    private static final String TAG = "EncodeExecutor";
+
+    static final int PRIORITY_THUMBNAIL = 0;
+    static final int PRIORITY_PICTURE = 1;
+
+    /**
+     * Work on files already on disk, only run while no capture is waiting.
+     */
+    static final int PRIORITY_BATCH = 2;
+    private static final String[] PRIORITY_NAMES = {"thumbnail", "picture", "batch"};
+
+    /**
+     * Pictures allowed in flight per worker, each of them can hold a full resolution bitmap.
+     */
+    private static final int PICTURES_PER_THREAD = 2;
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static EncodeExecutor sInstance;
+
+    private final int mThreadCount;
+    private final int mMaxPendingPictures;
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mPicturePermits;
+
+    /**
+     * Waiting for {@link #whenPicturesReleased(Runnable)}, only accessed while holding the lock on
+     * it
+     */
+    private final List<Runnable> mReleasedCallbacks = new ArrayList<>();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicInteger[] mQueued = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+    private final AtomicInteger[] mActive = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+    private final AtomicLong[] mCompleted = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+    private final AtomicInteger[] mMaxQueued = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
+    private final AtomicLong mRejectedPictures = new AtomicLong();
+
+    static synchronized EncodeExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new EncodeExecutor();
+        }
+
+        return sInstance;
+    }
+
+    private EncodeExecutor() {
+        // Leave a core to the camera and UI threads
+        mThreadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_THREADS));
+        mMaxPendingPictures = mThreadCount * PICTURES_PER_THREAD;
+        mPicturePermits = new Semaphore(mMaxPendingPictures);
+
+        mExecutor = new ThreadPoolExecutor(
+                mThreadCount,
+                mThreadCount,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "CameraEncode-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
+        );
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reserves a slot for a full resolution picture.
+     *
+     * @return {@code false} if the pool is saturated and the capture should not be started
+     */
+    boolean tryReservePicture() {
+        return tryReservePictures(1);
+    }
+
+    /**
+     * Reserves slots for a burst of full resolution pictures, all of them or none.
+     *
+     * @return {@code false} if the pool cannot take them all
+     */
+    boolean tryReservePictures(int count) {
+        if (mPicturePermits.tryAcquire(count)) {
+            return true;
+        }
+
+        mRejectedPictures.addAndGet(count);
+        return false;
+    }
+
+    /**
+     * Gives back a slot reserved with {@link #tryReservePicture()} or
+     * {@link #tryReservePictures(int)}.
+     */
+    void releasePicture() {
+        mPicturePermits.release();
+
+        List<Runnable> callbacks;
+        synchronized (mReleasedCallbacks) {
+            if (mReleasedCallbacks.isEmpty() || getPendingPictures() > 0) {
+                return;
+            }
+            callbacks = new ArrayList<>(mReleasedCallbacks);
+            mReleasedCallbacks.clear();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Runs a callback once every reserved picture has been given back, right away if none is
+     * pending, from the thread giving back the last one otherwise.
+     */
+    void whenPicturesReleased(Runnable callback) {
+        synchronized (mReleasedCallbacks) {
+            if (getPendingPictures() > 0) {
+                mReleasedCallbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.run();
+    }
+
+    /**
+     * Pictures that can be reserved at once, the deepest burst the pool can take.
+     */
+    int getMaxPendingPictures() {
+        return mMaxPendingPictures;
+    }
+
+    /**
+     * Pictures reserved and not yet saved, their images may still be held.
+     */
+    int getPendingPictures() {
+        return mMaxPendingPictures - mPicturePermits.availablePermits();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param priority One of {@link #PRIORITY_THUMBNAIL}, {@link #PRIORITY_PICTURE} or
+     *                 {@link #PRIORITY_BATCH}
+     */
+    void execute(int priority, Runnable task) {
+        int queued = mQueued[priority].incrementAndGet();
+        mMaxQueued[priority].accumulateAndGet(queued, Math::max);
+        mExecutor.execute(new PrioritizedTask(priority, mSequence.getAndIncrement(), task));
+    }
+
+    /**
+     * Snapshot of per-queue depths and counters.
+     */
+    JSObject getMetrics() {
+        JSObject metrics = new JSObject();
+        metrics.put("threads", mThreadCount);
+        metrics.put("maxPendingPictures", mMaxPendingPictures);
+        metrics.put("pendingPictures", getPendingPictures());
+        metrics.put("rejectedPictures", mRejectedPictures.get());
+
+        for (int priority = 0; priority < PRIORITY_NAMES.length; priority++) {
+            JSObject queue = new JSObject();
+            queue.put("queued", mQueued[priority].get());
+            queue.put("active", mActive[priority].get());
+            queue.put("completed", mCompleted[priority].get());
+            queue.put("maxQueued", mMaxQueued[priority].get());
+            metrics.put(PRIORITY_NAMES[priority], queue);
+        }
+
+        return metrics;
+    }
+
+    private final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final int mPriority;
+        private final long mSequence;
+        private final Runnable mTask;
+
+        PrioritizedTask(int priority, long sequence, Runnable task) {
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mQueued[mPriority].decrementAndGet();
+            mActive[mPriority].incrementAndGet();
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                // Tasks settle their own failures, this one didn't and must not kill the process
+                Log.e(TAG, "Uncaught error in " + PRIORITY_NAMES[mPriority] + " task", e);
+            } finally {
+                mActive[mPriority].decrementAndGet();
+                mCompleted[mPriority].incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
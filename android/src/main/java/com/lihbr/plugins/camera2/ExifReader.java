@@ -0,0 +1,193 @@
+package com.lihbr.plugins.camera2;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads the exposure tags {@link ExifWriter} writes, memoised by path, modification time and
+ * length so gallery views don't parse the same pictures again. {@link ExifInterface} only goes
+ * through the JPEG segments up to the image data, which is never read.
+ */
+final class ExifReader {
+    interface Listener {
+        /**
+         * Every file has been read, called from a worker thread.
+         *
+         * @param results The tags of each file, in order, or an {@code error}
+         */
+        void onRead(JSArray results);
+    }
+
+    /**
+     * Pictures whose tags are kept around.
+     */
+    private static final int MAX_ENTRIES = 2048;
+
+    private static ExifReader sInstance;
+
+    private static final class Entry {
+        final long lastModified;
+        final long length;
+        final JSObject tags;
+
+        Entry(long lastModified, long length, JSObject tags) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * Least recently read first, only accessed while holding the lock on it
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    static synchronized ExifReader getInstance() {
+        if (sInstance == null) {
+            sInstance = new ExifReader();
+        }
+
+        return sInstance;
+    }
+
+    private ExifReader() {
+    }
+
+    /**
+     * The exposure tags of a picture, {@code null} for those it doesn't have. The returned object
+     * is shared and must not be modified.
+     */
+    JSObject read(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                mHits.incrementAndGet();
+                return entry.tags;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        JSObject tags = parse(file);
+        synchronized (mEntries) {
+            mEntries.put(path, new Entry(lastModified, length, tags));
+        }
+
+        return tags;
+    }
+
+    /**
+     * Reads files in parallel on the {@link EncodeExecutor}, behind any capture work.
+     */
+    void readAll(List<File> files, Listener listener) {
+        JSObject[] results = new JSObject[files.size()];
+        AtomicInteger remaining = new AtomicInteger(files.size());
+        if (files.isEmpty()) {
+            listener.onRead(new JSArray());
+            return;
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            final int index = i;
+            EncodeExecutor.getInstance().execute(EncodeExecutor.PRIORITY_BATCH, new Runnable() {
+                @Override
+                public void run() {
+                    File file = files.get(index);
+                    JSObject result = new JSObject();
+                    result.put("path", file.getAbsolutePath());
+                    try {
+                        result.put("exif", read(file));
+                    } catch (IOException | RuntimeException e) {
+                        // Malformed files can make ExifInterface throw anything
+                        result.put("error", "Error reading EXIF data: " + e.getMessage());
+                    } finally {
+                        results[index] = result;
+                        if (remaining.decrementAndGet() == 0) {
+                            JSArray jsArray = new JSArray();
+                            for (JSObject jsObject : results) {
+                                jsArray.put(jsObject);
+                            }
+                            listener.onRead(jsArray);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Cache hits and misses since the app started, and the pictures whose tags are kept.
+     */
+    JSObject getMetrics() {
+        JSObject metrics = new JSObject();
+        metrics.put("hits", mHits.get());
+        metrics.put("misses", mMisses.get());
+
+        synchronized (mEntries) {
+            metrics.put("entries", mEntries.size());
+        }
+
+        return metrics;
+    }
+
+    private static JSObject parse(File file) throws IOException {
+        ExifInterface exif = new ExifInterface(file);
+        JSObject tags = new JSObject();
+
+        int iso = exif.getAttributeInt(ExifInterface.TAG_PHOTOGRAPHIC_SENSITIVITY, -1);
+        tags.put("iso", iso >= 0 ? iso : null);
+
+        tags.put("shutterSpeed", getDouble(exif, ExifInterface.TAG_EXPOSURE_TIME));
+        tags.put("aperture", getDouble(exif, ExifInterface.TAG_F_NUMBER));
+
+        Double focalLength = getDouble(exif, ExifInterface.TAG_FOCAL_LENGTH);
+        if (focalLength == null) {
+            // Pictures saved by earlier versions only had it as the maker note
+            String makerNote = exif.getAttribute(ExifInterface.TAG_MAKER_NOTE);
+            try {
+                focalLength = makerNote != null ? Double.valueOf(makerNote) : null;
+            } catch (NumberFormatException e) {
+                focalLength = null;
+            }
+        }
+        tags.put("focalLength", focalLength);
+
+        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        tags.put("orientation", orientation != ExifInterface.ORIENTATION_UNDEFINED ? orientation : null);
+
+        String dateTime = exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL);
+        tags.put("dateTime", dateTime != null ? dateTime : exif.getAttribute(ExifInterface.TAG_DATETIME));
+
+        return tags;
+    }
+
+    private static Double getDouble(ExifInterface exif, String tag) {
+        if (exif.getAttribute(tag) == null) {
+            return null;
+        }
+
+        double value = exif.getAttributeDouble(tag, -1);
+        return value >= 0 ? value : null;
+    }
+}
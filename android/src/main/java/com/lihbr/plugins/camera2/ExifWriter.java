@@ -0,0 +1,343 @@
+package com.lihbr.plugins.camera2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds an EXIF APP1 segment in memory so it can be written along with the JPEG data in a single
+ * pass, instead of rewriting the whole file afterwards with {@link androidx.exifinterface.media.ExifInterface}.
+ * <p>
+ * Tags are written so that {@link androidx.exifinterface.media.ExifInterface} reads them back the
+ * same way it reads the ones it writes itself.
+ */
+final class ExifWriter {
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_UNDEFINED = 7;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_PHOTOGRAPHIC_SENSITIVITY = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_MAKER_NOTE = 0x927C;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int TIFF_HEADER_SIZE = 8;
+
+    private final List<Entry> mIfd0 = new ArrayList<>();
+    private final List<Entry> mExifIfd = new ArrayList<>();
+
+    /**
+     * @param dateTime Formatted as {@code yyyy:MM:dd HH:mm:ss}
+     */
+    void setDateTime(String dateTime) {
+        byte[] value = ascii(dateTime);
+        mIfd0.add(new Entry(TAG_DATETIME, TYPE_ASCII, value.length, value));
+        mExifIfd.add(new Entry(TAG_DATETIME_ORIGINAL, TYPE_ASCII, value.length, value));
+    }
+
+    /**
+     * @param orientation One of the {@code ExifInterface.ORIENTATION_*} values
+     */
+    void setOrientation(int orientation) {
+        mIfd0.add(new Entry(TAG_ORIENTATION, TYPE_SHORT, 1, shortValue(orientation)));
+    }
+
+    /**
+     * Converts a clockwise rotation to an orientation tag value.
+     *
+     * @param degrees One of 0, 90, 180 or 270
+     * @return One of the {@code ExifInterface.ORIENTATION_*} values
+     */
+    static int orientationFromDegrees(int degrees) {
+        switch (degrees) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    void setIso(int iso) {
+        mExifIfd.add(new Entry(TAG_PHOTOGRAPHIC_SENSITIVITY, TYPE_SHORT, 1, shortValue(Math.min(iso, 0xFFFF))));
+    }
+
+    void setExposureTime(long exposureTimeNs) {
+        long numerator = exposureTimeNs;
+        long denominator = 1_000_000_000L;
+        long gcd = gcd(numerator, denominator);
+        numerator /= gcd;
+        denominator /= gcd;
+        // Rationals are unsigned 32-bit, long exposures lose sub-microsecond precision
+        while (numerator > 0xFFFFFFFFL || denominator > 0xFFFFFFFFL) {
+            numerator /= 10;
+            denominator /= 10;
+        }
+        mExifIfd.add(new Entry(TAG_EXPOSURE_TIME, TYPE_RATIONAL, 1, rationalValue(numerator, Math.max(denominator, 1))));
+    }
+
+    void setFNumber(float aperture) {
+        mExifIfd.add(new Entry(TAG_F_NUMBER, TYPE_RATIONAL, 1, rationalValue(Math.round(aperture * 100), 100)));
+    }
+
+    void setFocalLength(float focalLength) {
+        mExifIfd.add(new Entry(TAG_FOCAL_LENGTH, TYPE_RATIONAL, 1, rationalValue(Math.round(focalLength * 1000), 1000)));
+        // Also written as the maker note, this is where Camera2Plugin#getExifData() reads it from
+        byte[] value = ascii(String.valueOf(focalLength));
+        mExifIfd.add(new Entry(TAG_MAKER_NOTE, TYPE_ASCII, value.length, value));
+    }
+
+    /**
+     * Builds the APP1 segment, marker and length included.
+     */
+    byte[] toApp1Segment() {
+        List<Entry> ifd0 = new ArrayList<>(mIfd0);
+        List<Entry> exifIfd = new ArrayList<>(mExifIfd);
+        exifIfd.add(new Entry(TAG_EXIF_VERSION, TYPE_UNDEFINED, 4, ascii("0230", false)));
+        // Placeholder, patched once the IFD0 size is known
+        Entry exifPointer = new Entry(TAG_EXIF_IFD_POINTER, TYPE_LONG, 1, new byte[4]);
+        ifd0.add(exifPointer);
+
+        Comparator<Entry> byTag = Comparator.comparingInt(entry -> entry.tag);
+        ifd0.sort(byTag);
+        exifIfd.sort(byTag);
+
+        int ifd0Offset = TIFF_HEADER_SIZE;
+        int exifIfdOffset = ifd0Offset + getIfdSize(ifd0);
+        ByteBuffer.wrap(exifPointer.value).putInt(exifIfdOffset);
+        int tiffSize = exifIfdOffset + getIfdSize(exifIfd);
+
+        int segmentLength = 2 + EXIF_HEADER.length + tiffSize;
+        if (segmentLength > 0xFFFF) {
+            throw new IllegalStateException("EXIF segment too large");
+        }
+
+        ByteBuffer segment = ByteBuffer.allocate(2 + segmentLength).order(ByteOrder.BIG_ENDIAN);
+        segment.put((byte) 0xFF).put((byte) 0xE1).putShort((short) segmentLength);
+        segment.put(EXIF_HEADER);
+
+        int tiffStart = segment.position();
+        segment.put((byte) 'M').put((byte) 'M').putShort((short) 0x002A).putInt(ifd0Offset);
+        writeIfd(segment, tiffStart, ifd0Offset, ifd0);
+        writeIfd(segment, tiffStart, exifIfdOffset, exifIfd);
+
+        return segment.array();
+    }
+
+    /**
+     * Writes a JPEG with the given APP1 segment inserted right after its SOI marker. EXIF segments
+     * already present in the stream, such as the one written by the camera, are dropped.
+     * <p>
+     * The stream is written with a single gathering write, straight from {@code jpeg} which can be
+     * a direct buffer, without any intermediate copy.
+     *
+     * @param jpeg The JPEG stream, from its position to its limit, starting with its SOI marker. It
+     *             is not consumed.
+     * @return The number of bytes written
+     */
+    static long writeJpeg(FileChannel channel, byte[] app1, ByteBuffer jpeg) throws IOException {
+        int start = jpeg.position();
+        int end = jpeg.limit();
+        if (end - start < 4 || u8(jpeg, start) != 0xFF || u8(jpeg, start + 1) != 0xD8) {
+            throw new IOException("Not a JPEG stream");
+        }
+
+        List<ByteBuffer> buffers = new ArrayList<>();
+        ByteBuffer head = ByteBuffer.allocate(2 + app1.length);
+        head.put((byte) 0xFF).put((byte) 0xD8).put(app1).flip();
+        buffers.add(head);
+
+        // Copy everything but existing EXIF segments, only header segments are walked
+        int pos = start + 2;
+        int copyFrom = pos;
+        while (pos + 4 <= end && u8(jpeg, pos) == 0xFF) {
+            int marker = u8(jpeg, pos + 1);
+            if (marker == 0xDA || marker == 0xD9) {
+                break;
+            }
+            int segmentEnd = pos + 2 + u16(jpeg, pos + 2);
+            if (marker == 0xE1 && isExifSegment(jpeg, pos, end)) {
+                buffers.add(slice(jpeg, copyFrom, pos));
+                copyFrom = Math.min(segmentEnd, end);
+            }
+            pos = segmentEnd;
+        }
+        buffers.add(slice(jpeg, copyFrom, end));
+
+        ByteBuffer[] sources = buffers.toArray(new ByteBuffer[0]);
+        long total = 0;
+        for (ByteBuffer source : sources) {
+            total += source.remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(sources);
+        }
+
+        return written;
+    }
+
+    /**
+     * Reads the orientation tag of the EXIF segment of a JPEG stream, if any.
+     *
+     * @param jpeg The JPEG stream, from its position to its limit. It is not consumed.
+     * @return The orientation, or {@code 0} (undefined) if not found
+     */
+    static int readOrientation(ByteBuffer jpeg) {
+        try {
+            int end = jpeg.limit();
+            int pos = jpeg.position() + 2;
+            while (pos + 4 <= end && u8(jpeg, pos) == 0xFF) {
+                int marker = u8(jpeg, pos + 1);
+                if (marker == 0xDA || marker == 0xD9) {
+                    return 0;
+                }
+                int segmentEnd = pos + 2 + u16(jpeg, pos + 2);
+                if (marker == 0xE1 && isExifSegment(jpeg, pos, end)) {
+                    ByteBuffer tiff = slice(jpeg, pos + 4 + EXIF_HEADER.length, Math.min(segmentEnd, end)).slice();
+                    tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                    int ifd0 = tiff.getInt(4);
+                    int count = tiff.getShort(ifd0) & 0xFFFF;
+                    for (int i = 0; i < count; i++) {
+                        int entry = ifd0 + 2 + i * 12;
+                        if ((tiff.getShort(entry) & 0xFFFF) == TAG_ORIENTATION) {
+                            return tiff.getShort(entry + 8) & 0xFFFF;
+                        }
+                    }
+                    return 0;
+                }
+                pos = segmentEnd;
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Malformed segment, treat as missing
+        }
+
+        return 0;
+    }
+
+    private static boolean isExifSegment(ByteBuffer jpeg, int pos, int end) {
+        if (pos + 4 + EXIF_HEADER.length > end) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg.get(pos + 4 + i) != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(to).position(from);
+        return slice;
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return (u8(buffer, index) << 8) | u8(buffer, index + 1);
+    }
+
+    private static int getIfdSize(List<Entry> entries) {
+        int size = 2 + entries.size() * 12 + 4;
+        for (Entry entry : entries) {
+            if (entry.value.length > 4) {
+                size += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        return size;
+    }
+
+    private static void writeIfd(ByteBuffer segment, int tiffStart, int offset, List<Entry> entries) {
+        int dataOffset = offset + 2 + entries.size() * 12 + 4;
+
+        segment.position(tiffStart + offset);
+        segment.putShort((short) entries.size());
+        for (Entry entry : entries) {
+            segment.putShort((short) entry.tag);
+            segment.putShort((short) entry.type);
+            segment.putInt(entry.count);
+            if (entry.value.length <= 4) {
+                byte[] inline = new byte[4];
+                System.arraycopy(entry.value, 0, inline, 0, entry.value.length);
+                segment.put(inline);
+            } else {
+                segment.putInt(dataOffset);
+                int entryPosition = segment.position();
+                segment.position(tiffStart + dataOffset);
+                segment.put(entry.value);
+                segment.position(entryPosition);
+                dataOffset += entry.value.length + (entry.value.length & 1);
+            }
+        }
+        // No next IFD
+        segment.putInt(0);
+        segment.position(tiffStart + dataOffset);
+    }
+
+    private static byte[] ascii(String value) {
+        return ascii(value, true);
+    }
+
+    private static byte[] ascii(String value, boolean nullTerminated) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (!nullTerminated) {
+            return bytes;
+        }
+        byte[] terminated = new byte[bytes.length + 1];
+        System.arraycopy(bytes, 0, terminated, 0, bytes.length);
+        return terminated;
+    }
+
+    private static byte[] shortValue(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] rationalValue(long numerator, long denominator) {
+        return ByteBuffer.allocate(8).putInt((int) numerator).putInt((int) denominator).array();
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a == 0 ? 1 : a;
+    }
+
+    private static final class Entry {
+        final int tag;
+        final int type;
+        final int count;
+        final byte[] value;
+
+        Entry(int tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,740 @@
+package com.lihbr.plugins.camera2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Crops baseline JPEG images without decoding them to pixels.
+ * <p>
+ * The entropy-coded data is walked MCU by MCU, blocks inside the crop region are re-emitted as-is
+ * (only DC predictions are recomputed) and blocks outside of it are skipped. Quantized DCT
+ * coefficients are never touched, so the output is bit-exact with the source within the crop and
+ * the cost only depends on the compressed size of the image, not on its pixel count.
+ * <p>
+ * The crop origin is aligned down to the MCU grid (8 or 16 pixels), the crop size is kept as
+ * requested. Progressive, arithmetic coded, multi-scan and 12-bit images are not supported, in
+ * which case {@link #crop} returns {@code null} and the caller should fall back to a full decode.
+ */
+final class LosslessJpegCropper {
+
+    private static final int M_SOF0 = 0xC0;
+    private static final int M_SOF1 = 0xC1;
+    private static final int M_DHT = 0xC4;
+    private static final int M_SOI = 0xD8;
+    private static final int M_EOI = 0xD9;
+    private static final int M_SOS = 0xDA;
+    private static final int M_DQT = 0xDB;
+    private static final int M_DRI = 0xDD;
+    private static final int M_RST0 = 0xD0;
+    private static final int M_RST7 = 0xD7;
+    private static final int M_TEM = 0x01;
+
+    /**
+     * Annex K standard Huffman tables, used for the output so every DC difference category
+     * produced by the crop has a code, whatever tables the source encoder used.
+     */
+    private static final int[] STD_DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] STD_DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] STD_DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] STD_AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] STD_AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] STD_AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] STD_AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private LosslessJpegCropper() {
+    }
+
+    /**
+     * Reads the dimensions of a JPEG image from its frame header.
+     *
+     * @param jpeg The JPEG stream, read from its position to its limit without being consumed
+     * @return The width and height of the image, or {@code null} if no supported frame header was
+     * found
+     */
+    static int[] readSize(ByteBuffer jpeg) {
+        int pos = jpeg.position();
+        int end = jpeg.limit();
+
+        if (end - pos < 4 || u8(jpeg, pos) != 0xFF || u8(jpeg, pos + 1) != M_SOI) {
+            return null;
+        }
+        pos += 2;
+
+        while (pos + 4 <= end) {
+            if (u8(jpeg, pos) != 0xFF) {
+                return null;
+            }
+            int marker = u8(jpeg, pos + 1);
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == M_SOS || marker == M_EOI) {
+                return null;
+            }
+            int length = u16(jpeg, pos + 2);
+            if (marker >= 0xC0 && marker <= 0xCF && marker != M_DHT && marker != 0xC8 && marker != 0xCC) {
+                if (pos + 9 > end) {
+                    return null;
+                }
+                return new int[]{u16(jpeg, pos + 7), u16(jpeg, pos + 5)};
+            }
+            pos += 2 + length;
+        }
+
+        return null;
+    }
+
+    /**
+     * Losslessly crops a JPEG image.
+     *
+     * @param jpeg   The JPEG stream, read from its position to its limit without being consumed
+     * @param x      The left edge of the crop, aligned down to the MCU grid
+     * @param y      The top edge of the crop, aligned down to the MCU grid
+     * @param width  The width of the crop
+     * @param height The height of the crop
+     * @return A buffer holding the cropped JPEG between its position and limit, or {@code null} if
+     * the image cannot be cropped losslessly
+     */
+    static ByteBuffer crop(ByteBuffer jpeg, int x, int y, int width, int height) {
+        try {
+            return new Cropper(jpeg).crop(x, y, width, height);
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            // Truncated or malformed stream, let the caller decode it the slow way
+            return null;
+        }
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return (u8(buffer, index) << 8) | u8(buffer, index + 1);
+    }
+
+    /**
+     * A Huffman table, built either for decoding from a DHT segment or for encoding.
+     */
+    private static final class HuffmanTable {
+        private static final int LOOKAHEAD = 9;
+
+        final int[] bits;
+        final int[] values;
+
+        // Decoding, lookahead entries are (length << 8) | value, 0 meaning "use slow path"
+        private final int[] lookahead = new int[1 << LOOKAHEAD];
+        private final int[] maxCode = new int[18];
+        private final int[] valOffset = new int[17];
+
+        // Encoding, indexed by symbol
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valOffset[length] = k - code;
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    int symbol = values[k++];
+                    codes[symbol] = code;
+                    sizes[symbol] = length;
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int base = code << shift;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookahead[base + j] = (length << 8) | symbol;
+                        }
+                    }
+                    code++;
+                }
+                maxCode[length] = bits[length - 1] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Walks a single JPEG stream. Instances are single use.
+     */
+    private static final class Cropper {
+        private final ByteBuffer mIn;
+        private final int mEnd;
+
+        private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+        private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+        private final HuffmanTable[] mOutDcTables = {
+                new HuffmanTable(STD_DC_LUMINANCE_BITS, STD_DC_VALUES),
+                new HuffmanTable(STD_DC_CHROMINANCE_BITS, STD_DC_VALUES)
+        };
+        private final HuffmanTable[] mOutAcTables = {
+                new HuffmanTable(STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES),
+                new HuffmanTable(STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES)
+        };
+
+        private int mWidth;
+        private int mHeight;
+        private int mSofStart = -1;
+        private int mSofLength;
+        private int mComponentCount;
+        private int[] mComponentH;
+        private int[] mComponentV;
+        private int mRestartInterval;
+
+        // Bit reader state
+        private int mPos;
+        private long mBitBuffer;
+        private int mBitCount;
+        private boolean mMarkerHit;
+
+        // Output
+        private byte[] mOut;
+        private int mOutLength;
+        private long mOutBitBuffer;
+        private int mOutBitCount;
+
+        Cropper(ByteBuffer jpeg) {
+            mIn = jpeg;
+            mEnd = jpeg.limit();
+        }
+
+        ByteBuffer crop(int x, int y, int width, int height) {
+            int pos = mIn.position();
+            if (u8(mIn, pos) != 0xFF || u8(mIn, pos + 1) != M_SOI) {
+                return null;
+            }
+            pos += 2;
+
+            mOut = new byte[Math.max(1024, mEnd - mIn.position())];
+            writeMarker(M_SOI);
+
+            // Copy quantization tables, parse frame and Huffman tables, drop everything else
+            while (true) {
+                if (u8(mIn, pos) != 0xFF) {
+                    return null;
+                }
+                int marker = u8(mIn, pos + 1);
+                if (marker == 0xFF) {
+                    pos++;
+                    continue;
+                }
+                if (marker == M_TEM || (marker >= M_RST0 && marker <= M_RST7)) {
+                    pos += 2;
+                    continue;
+                }
+                if (marker == M_EOI) {
+                    return null;
+                }
+                int length = u16(mIn, pos + 2);
+                int segment = pos + 4;
+
+                if (marker == M_SOS) {
+                    return cropScan(segment, length - 2, x, y, width, height);
+                } else if (marker == M_SOF0 || marker == M_SOF1) {
+                    if (!readFrame(pos, length)) {
+                        return null;
+                    }
+                } else if (marker >= 0xC0 && marker <= 0xCF && marker != M_DHT && marker != 0xC8 && marker != 0xCC) {
+                    // Progressive, lossless, hierarchical or arithmetic coded
+                    return null;
+                } else if (marker == 0xCC) {
+                    // Arithmetic coding conditioning
+                    return null;
+                } else if (marker == M_DHT) {
+                    readHuffmanTables(segment, length - 2);
+                } else if (marker == M_DRI) {
+                    mRestartInterval = u16(mIn, segment);
+                } else if (marker == M_DQT) {
+                    writeRaw(pos, length + 2);
+                }
+
+                pos += 2 + length;
+            }
+        }
+
+        private boolean readFrame(int pos, int length) {
+            int precision = u8(mIn, pos + 4);
+            if (precision != 8) {
+                return false;
+            }
+
+            mHeight = u16(mIn, pos + 5);
+            mWidth = u16(mIn, pos + 7);
+            mComponentCount = u8(mIn, pos + 9);
+            if (mHeight == 0 || mComponentCount < 1 || mComponentCount > 4) {
+                return false;
+            }
+
+            mComponentH = new int[mComponentCount];
+            mComponentV = new int[mComponentCount];
+            for (int i = 0; i < mComponentCount; i++) {
+                int sampling = u8(mIn, pos + 11 + i * 3);
+                mComponentH[i] = sampling >> 4;
+                mComponentV[i] = sampling & 0x0F;
+                if (mComponentH[i] < 1 || mComponentV[i] < 1) {
+                    return false;
+                }
+            }
+
+            mSofStart = pos;
+            mSofLength = length + 2;
+
+            return true;
+        }
+
+        private void readHuffmanTables(int pos, int length) {
+            int end = pos + length;
+            while (pos < end) {
+                int info = u8(mIn, pos);
+                int tableClass = info >> 4;
+                int tableId = info & 0x0F;
+                if (tableId > 3) {
+                    throw new IllegalStateException("Invalid Huffman table id");
+                }
+
+                int[] bits = new int[16];
+                int count = 0;
+                for (int i = 0; i < 16; i++) {
+                    bits[i] = u8(mIn, pos + 1 + i);
+                    count += bits[i];
+                }
+                if (count > 256) {
+                    throw new IllegalStateException("Invalid Huffman table");
+                }
+
+                int[] values = new int[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = u8(mIn, pos + 17 + i);
+                }
+
+                HuffmanTable table = new HuffmanTable(bits, values);
+                if (tableClass == 0) {
+                    mDcTables[tableId] = table;
+                } else {
+                    mAcTables[tableId] = table;
+                }
+
+                pos += 17 + count;
+            }
+        }
+
+        private ByteBuffer cropScan(int pos, int length, int x, int y, int width, int height) {
+            if (mSofStart < 0) {
+                return null;
+            }
+
+            int scanComponents = u8(mIn, pos);
+            // Only a single scan holding all components is supported, which is what camera HALs
+            // and hardware encoders produce
+            if (scanComponents != mComponentCount) {
+                return null;
+            }
+
+            HuffmanTable[] dcTables = new HuffmanTable[scanComponents];
+            HuffmanTable[] acTables = new HuffmanTable[scanComponents];
+            for (int i = 0; i < scanComponents; i++) {
+                int tables = u8(mIn, pos + 2 + i * 2);
+                dcTables[i] = mDcTables[tables >> 4];
+                acTables[i] = mAcTables[tables & 0x0F];
+                if (dcTables[i] == null || acTables[i] == null) {
+                    return null;
+                }
+            }
+            int spectral = pos + 1 + scanComponents * 2;
+            if (u8(mIn, spectral) != 0 || u8(mIn, spectral + 1) != 63 || u8(mIn, spectral + 2) != 0) {
+                return null;
+            }
+
+            // MCU geometry
+            int maxH = 1;
+            int maxV = 1;
+            int[] blocksPerMcu = new int[scanComponents];
+            if (scanComponents == 1) {
+                // Non-interleaved scans are always made of single 8x8 blocks
+                blocksPerMcu[0] = 1;
+            } else {
+                for (int i = 0; i < scanComponents; i++) {
+                    maxH = Math.max(maxH, mComponentH[i]);
+                    maxV = Math.max(maxV, mComponentV[i]);
+                    blocksPerMcu[i] = mComponentH[i] * mComponentV[i];
+                }
+            }
+            int mcuWidth = 8 * maxH;
+            int mcuHeight = 8 * maxV;
+            int mcuColumns = (mWidth + mcuWidth - 1) / mcuWidth;
+            int mcuRows = (mHeight + mcuHeight - 1) / mcuHeight;
+
+            // Crop geometry, in MCUs
+            x = Math.max(0, Math.min(x, mWidth - 1));
+            y = Math.max(0, Math.min(y, mHeight - 1));
+            int alignedX = x - x % mcuWidth;
+            int alignedY = y - y % mcuHeight;
+            width = Math.max(1, Math.min(width, mWidth - alignedX));
+            height = Math.max(1, Math.min(height, mHeight - alignedY));
+            int firstColumn = alignedX / mcuWidth;
+            int lastColumn = (alignedX + width + mcuWidth - 1) / mcuWidth;
+            int firstRow = alignedY / mcuHeight;
+            int lastRow = (alignedY + height + mcuHeight - 1) / mcuHeight;
+
+            // Headers: frame with the new dimensions, standard Huffman tables, scan header
+            writeFrame(width, height);
+            writeHuffmanTables();
+            writeScanHeader(pos, scanComponents);
+
+            // Entropy-coded segment
+            mPos = pos + length;
+            int[] predictions = new int[scanComponents];
+            int[] outPredictions = new int[scanComponents];
+            int restartsLeft = mRestartInterval;
+
+            int mcuCount = Math.min(lastRow, mcuRows) * mcuColumns;
+            for (int index = 0; index < mcuCount; index++) {
+                if (mRestartInterval > 0) {
+                    if (restartsLeft == 0) {
+                        readRestart();
+                        Arrays.fill(predictions, 0);
+                        restartsLeft = mRestartInterval;
+                    }
+                    // Skip whole restart intervals that are entirely outside of the crop
+                    if (restartsLeft == mRestartInterval) {
+                        int intervalEnd = Math.min(index + mRestartInterval, mcuRows * mcuColumns) - 1;
+                        if (!intervalIntersects(index, intervalEnd, mcuColumns, firstColumn, lastColumn, firstRow, lastRow)
+                                && skipToRestart()) {
+                            index = intervalEnd;
+                            restartsLeft = 0;
+                            continue;
+                        }
+                    }
+                    restartsLeft--;
+                }
+
+                int row = index / mcuColumns;
+                int column = index % mcuColumns;
+                boolean emit = row >= firstRow && column >= firstColumn && column < lastColumn;
+                for (int c = 0; c < scanComponents; c++) {
+                    HuffmanTable outDc = mOutDcTables[c == 0 ? 0 : 1];
+                    HuffmanTable outAc = mOutAcTables[c == 0 ? 0 : 1];
+                    for (int b = 0; b < blocksPerMcu[c]; b++) {
+                        predictions[c] += decodeDcDifference(dcTables[c]);
+                        if (emit) {
+                            encodeDcDifference(outDc, predictions[c] - outPredictions[c]);
+                            outPredictions[c] = predictions[c];
+                        }
+                        copyAcCoefficients(acTables[c], emit ? outAc : null);
+                    }
+                }
+            }
+
+            flushBits();
+            writeMarker(M_EOI);
+
+            return ByteBuffer.wrap(mOut, 0, mOutLength);
+        }
+
+        private static boolean intervalIntersects(int start, int end, int columns, int firstColumn, int lastColumn, int firstRow, int lastRow) {
+            for (int row = Math.max(start / columns, firstRow); row <= Math.min(end / columns, lastRow - 1); row++) {
+                int from = row == start / columns ? start % columns : 0;
+                int to = row == end / columns ? end % columns : columns - 1;
+                if (from < lastColumn && to >= firstColumn) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // region Entropy decoding
+
+        private void fillBits() {
+            while (mBitCount <= 56) {
+                int value = 0;
+                if (!mMarkerHit) {
+                    if (mPos >= mEnd) {
+                        mMarkerHit = true;
+                    } else {
+                        value = u8(mIn, mPos);
+                        if (value == 0xFF) {
+                            int next = mPos + 1 < mEnd ? u8(mIn, mPos + 1) : M_EOI;
+                            if (next == 0x00) {
+                                mPos += 2;
+                            } else {
+                                // Marker, leave it in the stream and pad with zeros
+                                mMarkerHit = true;
+                                value = 0;
+                            }
+                        } else {
+                            mPos++;
+                        }
+                    }
+                }
+                mBitBuffer |= ((long) value) << (56 - mBitCount);
+                mBitCount += 8;
+            }
+        }
+
+        private int peekBits(int count) {
+            if (mBitCount < count) {
+                fillBits();
+            }
+            return (int) (mBitBuffer >>> (64 - count));
+        }
+
+        private void skipBits(int count) {
+            mBitBuffer <<= count;
+            mBitCount -= count;
+        }
+
+        private int readBits(int count) {
+            if (count == 0) {
+                return 0;
+            }
+            int value = peekBits(count);
+            skipBits(count);
+            return value;
+        }
+
+        private int decodeSymbol(HuffmanTable table) {
+            int look = peekBits(HuffmanTable.LOOKAHEAD);
+            int entry = table.lookahead[look];
+            if (entry != 0) {
+                skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+
+            int code = peekBits(16);
+            for (int length = HuffmanTable.LOOKAHEAD + 1; length <= 16; length++) {
+                int prefix = code >>> (16 - length);
+                if (prefix <= table.maxCode[length]) {
+                    skipBits(length);
+                    return table.values[prefix + table.valOffset[length]];
+                }
+            }
+
+            throw new IllegalStateException("Corrupt Huffman data");
+        }
+
+        private int decodeDcDifference(HuffmanTable table) {
+            int size = decodeSymbol(table);
+            if (size == 0) {
+                return 0;
+            }
+            if (size > 11) {
+                throw new IllegalStateException("Invalid DC difference");
+            }
+            int bits = readBits(size);
+            return bits < (1 << (size - 1)) ? bits - (1 << size) + 1 : bits;
+        }
+
+        /**
+         * Walks the 63 AC coefficients of a block, copying their symbols and extra bits verbatim
+         * when {@code out} is not {@code null}.
+         */
+        private void copyAcCoefficients(HuffmanTable table, HuffmanTable out) {
+            for (int k = 1; k < 64; ) {
+                int symbol = decodeSymbol(table);
+                int run = symbol >> 4;
+                int size = symbol & 0x0F;
+
+                if (size == 0) {
+                    if (out != null) {
+                        writeBits(out.codes[symbol], out.sizes[symbol]);
+                    }
+                    if (run != 15) {
+                        // End of block
+                        return;
+                    }
+                    k += 16;
+                    continue;
+                }
+
+                int bits = readBits(size);
+                if (out != null) {
+                    if (out.sizes[symbol] == 0) {
+                        throw new IllegalStateException("Invalid AC symbol");
+                    }
+                    writeBits(out.codes[symbol], out.sizes[symbol]);
+                    writeBits(bits, size);
+                }
+                k += run + 1;
+            }
+        }
+
+        private void readRestart() {
+            // Drop padding bits and bytes, then expect a RSTn marker
+            mBitBuffer = 0;
+            mBitCount = 0;
+            mMarkerHit = false;
+            while (mPos + 1 < mEnd && u8(mIn, mPos) == 0xFF && u8(mIn, mPos + 1) == 0xFF) {
+                mPos++;
+            }
+            if (mPos + 1 >= mEnd || u8(mIn, mPos) != 0xFF || u8(mIn, mPos + 1) < M_RST0 || u8(mIn, mPos + 1) > M_RST7) {
+                throw new IllegalStateException("Missing restart marker");
+            }
+            mPos += 2;
+        }
+
+        /**
+         * Moves the reader right before the next RSTn marker without decoding anything.
+         *
+         * @return {@code false} if there is no further restart marker, leaving the reader untouched
+         */
+        private boolean skipToRestart() {
+            for (int i = mPos; i + 1 < mEnd; i++) {
+                if (u8(mIn, i) == 0xFF) {
+                    int marker = u8(mIn, i + 1);
+                    if (marker >= M_RST0 && marker <= M_RST7) {
+                        mPos = i;
+                        mBitBuffer = 0;
+                        mBitCount = 0;
+                        mMarkerHit = true;
+                        return true;
+                    } else if (marker != 0x00 && marker != 0xFF) {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // endregion
+
+        // region Output
+
+        private void ensureCapacity(int extra) {
+            if (mOutLength + extra > mOut.length) {
+                mOut = Arrays.copyOf(mOut, Math.max(mOut.length * 2, mOutLength + extra));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensureCapacity(1);
+            mOut[mOutLength++] = (byte) value;
+        }
+
+        private void writeShort(int value) {
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        private void writeMarker(int marker) {
+            writeByte(0xFF);
+            writeByte(marker);
+        }
+
+        private void writeRaw(int pos, int length) {
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                mOut[mOutLength++] = mIn.get(pos + i);
+            }
+        }
+
+        private void writeFrame(int width, int height) {
+            int start = mOutLength;
+            writeRaw(mSofStart, mSofLength);
+            mOut[start + 5] = (byte) (height >> 8);
+            mOut[start + 6] = (byte) height;
+            mOut[start + 7] = (byte) (width >> 8);
+            mOut[start + 8] = (byte) width;
+        }
+
+        private void writeHuffmanTables() {
+            int length = 2;
+            for (HuffmanTable table : mOutDcTables) {
+                length += 17 + table.values.length;
+            }
+            for (HuffmanTable table : mOutAcTables) {
+                length += 17 + table.values.length;
+            }
+
+            writeMarker(M_DHT);
+            writeShort(length);
+            for (int i = 0; i < mOutDcTables.length; i++) {
+                writeHuffmanTable(i, mOutDcTables[i]);
+            }
+            for (int i = 0; i < mOutAcTables.length; i++) {
+                writeHuffmanTable(0x10 | i, mOutAcTables[i]);
+            }
+        }
+
+        private void writeHuffmanTable(int info, HuffmanTable table) {
+            writeByte(info);
+            for (int count : table.bits) {
+                writeByte(count);
+            }
+            for (int value : table.values) {
+                writeByte(value);
+            }
+        }
+
+        private void writeScanHeader(int pos, int scanComponents) {
+            writeMarker(M_SOS);
+            writeShort(6 + scanComponents * 2);
+            writeByte(scanComponents);
+            for (int i = 0; i < scanComponents; i++) {
+                writeByte(u8(mIn, pos + 1 + i * 2));
+                writeByte(i == 0 ? 0x00 : 0x11);
+            }
+            writeByte(0);
+            writeByte(63);
+            writeByte(0);
+        }
+
+        private void writeBits(int value, int count) {
+            mOutBitBuffer = (mOutBitBuffer << count) | (value & ((1L << count) - 1));
+            mOutBitCount += count;
+            while (mOutBitCount >= 8) {
+                int b = (int) (mOutBitBuffer >> (mOutBitCount - 8)) & 0xFF;
+                mOutBitCount -= 8;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0x00);
+                }
+            }
+        }
+
+        private void encodeDcDifference(HuffmanTable table, int difference) {
+            int magnitude = Math.abs(difference);
+            int size = 32 - Integer.numberOfLeadingZeros(magnitude);
+            writeBits(table.codes[size], table.sizes[size]);
+            if (size > 0) {
+                writeBits(difference < 0 ? difference - 1 : difference, size);
+            }
+        }
+
+        private void flushBits() {
+            if (mOutBitCount > 0) {
+                writeBits(0x7F, 8 - mOutBitCount);
+            }
+        }
+
+        // endregion
+    }
+}
@@ -0,0 +1,83 @@
+package com.lihbr.plugins.camera2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A set of preview controls applied together with a single repeating request, so no frame is
+ * exposed with only some of them. Values left {@code null} are unchanged, negative shutter speed,
+ * ISO and focus values go back to automatic.
+ * <p>
+ * Updates sent faster than frames are delivered are merged, the latest value of each control
+ * winning, see {@link #merge(ManualControls)}.
+ */
+final class ManualControls {
+    interface Listener {
+        /**
+         * The first frame of the repeating request carrying the controls has started exposing,
+         * called from the camera background thread.
+         */
+        void onApplied(ManualControls controls, long frameNumber);
+
+        void onFailed(String message);
+    }
+
+    /**
+     * Increasing number given to each update when sent, a merged update taking the latest one.
+     */
+    long sequence = -1;
+
+    /**
+     * Nanoseconds
+     */
+    Long shutterSpeed;
+    Integer iso;
+    Float aperture;
+    Integer exposureCompensation;
+
+    /**
+     * Diopters
+     */
+    Float focus;
+
+    private final Listener mListener;
+    private final AtomicBoolean mSettled = new AtomicBoolean();
+
+    /**
+     * @param listener Told when the controls apply, {@code null} if nobody waits for them
+     */
+    ManualControls(Listener listener) {
+        mListener = listener;
+    }
+
+    boolean hasListener() {
+        return mListener != null;
+    }
+
+    /**
+     * Overrides these controls with those set in a later update.
+     */
+    void merge(ManualControls controls) {
+        sequence = controls.sequence;
+        if (controls.shutterSpeed != null) shutterSpeed = controls.shutterSpeed;
+        if (controls.iso != null) iso = controls.iso;
+        if (controls.aperture != null) aperture = controls.aperture;
+        if (controls.exposureCompensation != null) exposureCompensation = controls.exposureCompensation;
+        if (controls.focus != null) focus = controls.focus;
+    }
+
+    /**
+     * Reports the frame the controls apply from, only the first call counts as the request keeps
+     * repeating.
+     */
+    void onApplied(long frameNumber) {
+        if (mListener != null && mSettled.compareAndSet(false, true)) {
+            mListener.onApplied(this, frameNumber);
+        }
+    }
+
+    void onFailed(String message) {
+        if (mListener != null && mSettled.compareAndSet(false, true)) {
+            mListener.onFailed(message);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.lihbr.plugins.camera2;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@code lock3A()} call waiting for AF and AE to report themselves locked, each within its own
+ * latency budget, past which the lock is held with whatever focus and exposure there is.
+ */
+final class Pending3ALock {
+    interface Listener {
+        /**
+         * AF and AE are locked or ran out of budget, called from the camera background thread.
+         */
+        void onLocked(Pending3ALock lock);
+
+        void onFailed(String message);
+    }
+
+    /**
+     * Latency budgets, in milliseconds.
+     */
+    long afTimeoutMs = PendingCapture.DEFAULT_AF_TIMEOUT_MS;
+    long aeTimeoutMs = PendingCapture.DEFAULT_AE_TIMEOUT_MS;
+
+    /**
+     * Whether AF or AE ran out of budget, set before the listener is told.
+     */
+    volatile boolean afTimedOut;
+    volatile boolean aeTimedOut;
+
+    private final Listener mListener;
+    private final AtomicBoolean mSettled = new AtomicBoolean();
+
+    Pending3ALock(Listener listener) {
+        mListener = listener;
+    }
+
+    void onLocked(boolean afTimedOut, boolean aeTimedOut) {
+        if (mSettled.compareAndSet(false, true)) {
+            this.afTimedOut = afTimedOut;
+            this.aeTimedOut = aeTimedOut;
+            mListener.onLocked(this);
+        }
+    }
+
+    void onFailed(String message) {
+        if (mSettled.compareAndSet(false, true)) {
+            mListener.onFailed(message);
+        }
+    }
+}
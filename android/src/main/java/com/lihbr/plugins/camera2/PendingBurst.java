@@ -0,0 +1,130 @@
+package com.lihbr.plugins.camera2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A burst of still captures, locking focus and exposure once and submitted together with
+ * {@link android.hardware.camera2.CameraCaptureSession#captureBurst}. Each frame is a
+ * {@link PendingCapture} of its own going through the save pipeline.
+ * <p>
+ * Exposure statistics are only updated from the camera background thread, frames are settled
+ * from whichever thread saved or dropped them.
+ */
+class PendingBurst {
+    /**
+     * Replaced by the frame index in picture and thumbnail path patterns.
+     */
+    static final String INDEX_PLACEHOLDER = "{index}";
+
+    /**
+     * Random, so bursts recorded in the {@link CaptureCatalog} by earlier runs of the app can't
+     * be mistaken for this one.
+     */
+    final String id = UUID.randomUUID().toString();
+    final List<PendingCapture> frames;
+
+    private int mExposed;
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicInteger mSettled = new AtomicInteger();
+    private long mFirstTimestamp = -1;
+    private long mLastTimestamp = -1;
+
+    PendingBurst(
+            int count,
+            String picturePathPattern,
+            String thumbnailPathPattern,
+            Integer thumbnailWidth,
+            Integer thumbnailHeight,
+            Integer thumbnailQuality,
+            boolean losslessCrop
+    ) {
+        List<PendingCapture> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String index = String.valueOf(i);
+            PendingCapture frame = new PendingCapture(
+                    picturePathPattern.replace(INDEX_PLACEHOLDER, index),
+                    thumbnailPathPattern != null ? thumbnailPathPattern.replace(INDEX_PLACEHOLDER, index) : null,
+                    thumbnailWidth,
+                    thumbnailHeight,
+                    thumbnailQuality,
+                    losslessCrop
+            );
+            frame.burst = this;
+            frames.add(frame);
+        }
+        this.frames = Collections.unmodifiableList(frames);
+    }
+
+    /**
+     * Makes the burst a bracket, each frame overriding the manual controls with its offset.
+     *
+     * @param type One of the {@code PendingCapture.BRACKET_*} constants
+     */
+    void setBracket(int type, float[] offsets) {
+        for (int i = 0; i < frames.size(); i++) {
+            frames.get(i).bracketType = type;
+            frames.get(i).bracketOffset = offsets[i];
+        }
+    }
+
+    /**
+     * A frame has been exposed.
+     *
+     * @param sensorTimestamp Start of exposure of the frame, in nanoseconds
+     */
+    void onFrameCaptured(long sensorTimestamp) {
+        mExposed++;
+        if (mFirstTimestamp < 0 || sensorTimestamp < mFirstTimestamp) {
+            mFirstTimestamp = sensorTimestamp;
+        }
+        if (sensorTimestamp > mLastTimestamp) {
+            mLastTimestamp = sensorTimestamp;
+        }
+    }
+
+    /**
+     * A frame failed or its buffer was lost.
+     */
+    void onFrameDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * A frame has been saved or dropped.
+     *
+     * @return {@code true} for the last frame of the burst, once
+     */
+    boolean onFrameSettled() {
+        return mSettled.incrementAndGet() == frames.size();
+    }
+
+    /**
+     * Frames captured and saved, not counting the dropped ones.
+     */
+    int getCaptured() {
+        return frames.size() - mDropped.get();
+    }
+
+    int getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Time between the first and last frames exposures, in milliseconds.
+     */
+    double getDurationMs() {
+        return mExposed > 1 ? (mLastTimestamp - mFirstTimestamp) / 1_000_000.0 : 0;
+    }
+
+    /**
+     * Frame rate achieved by the sensor over the burst, 0 if it couldn't be measured.
+     */
+    double getFps() {
+        double durationMs = getDurationMs();
+        return durationMs > 0 ? (mExposed - 1) * 1000.0 / durationMs : 0;
+    }
+}
@@ -0,0 +1,157 @@
+package com.lihbr.plugins.camera2;
+
+import android.os.Environment;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A still capture request, carrying its own output files and options through the lock, capture
+ * and save stages so several of them can be in flight at once.
+ */
+class PendingCapture {
+    static final int BRACKET_NONE = 0;
+
+    /**
+     * Bracket offset in stops of exposure time
+     */
+    static final int BRACKET_EXPOSURE = 1;
+
+    /**
+     * Bracket offset in stops of sensitivity
+     */
+    static final int BRACKET_ISO = 2;
+
+    /**
+     * Bracket offset in diopters from the manual or locked focus distance
+     */
+    static final int BRACKET_FOCUS = 3;
+
+    static final long DEFAULT_AF_TIMEOUT_MS = 2_000;
+    static final long DEFAULT_AE_TIMEOUT_MS = 2_000;
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    final int id;
+
+    /**
+     * Shutter press, in the {@link SystemClock#elapsedRealtimeNanos()} time base
+     */
+    final long requestedAt = SystemClock.elapsedRealtimeNanos();
+
+    /**
+     * Stage timestamps, from the shutter press on
+     */
+    final CaptureTimings timings = new CaptureTimings(requestedAt);
+
+    /**
+     * This is the output file for our picture.
+     */
+    final File picture;
+    final File thumbnail;
+    final Integer thumbnailWidth;
+    final Integer thumbnailHeight;
+    final Integer thumbnailQuality;
+
+    /**
+     * Crop the picture in the DCT domain instead of decoding and re-encoding it
+     */
+    final boolean losslessCrop;
+
+    /**
+     * Aspect ratio of the viewfinder when the capture was requested
+     */
+    float ratio;
+
+    /**
+     * Use the zero shutter lag frame closest to the shutter press, if any
+     */
+    boolean zsl;
+
+    /**
+     * Grab the thumbnail from the viewfinder when the picture is shot, rather than scaling it
+     * down from the picture
+     */
+    boolean previewThumbnail;
+
+    /**
+     * Set by whichever of the viewfinder grab or the picture save writes the thumbnail first
+     */
+    final AtomicBoolean thumbnailClaimed = new AtomicBoolean();
+
+    /**
+     * Clockwise rotation of the picture, for frames not encoded by the camera
+     */
+    int orientation;
+
+    /**
+     * Size of the saved picture once displayed, {@code -1} until it is encoded
+     */
+    volatile int width = -1;
+    volatile int height = -1;
+
+    /**
+     * Whether the capture skipped the lock stage
+     */
+    boolean fastPath;
+
+    /**
+     * Start of exposure, in the {@link SystemClock#elapsedRealtimeNanos()} time base, {@code -1}
+     * until then
+     */
+    long exposedAt = -1;
+
+    /**
+     * Longest waits for focus and exposure to converge before the shot fires anyway
+     */
+    long afTimeoutMs = DEFAULT_AF_TIMEOUT_MS;
+    long aeTimeoutMs = DEFAULT_AE_TIMEOUT_MS;
+    boolean afTimedOut;
+    boolean aeTimedOut;
+
+    /**
+     * The burst this capture is a frame of, if any
+     */
+    PendingBurst burst;
+
+    /**
+     * Override of the manual controls for this capture, one of the {@code BRACKET_*} constants
+     */
+    int bracketType = BRACKET_NONE;
+    float bracketOffset;
+
+    PendingCapture(String picturePath, boolean losslessCrop) {
+        this(picturePath, null, null, null, null, losslessCrop);
+    }
+
+    PendingCapture(
+            String picturePath,
+            String thumbnailPath,
+            Integer thumbnailWidth,
+            Integer thumbnailHeight,
+            Integer thumbnailQuality,
+            boolean losslessCrop
+    ) {
+        this.id = sNextId.getAndIncrement();
+        this.picture = new File(Environment.getExternalStorageDirectory(), picturePath);
+        this.thumbnail = thumbnailPath != null ? new File(Environment.getExternalStorageDirectory(), thumbnailPath) : null;
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+        this.thumbnailQuality = thumbnailQuality;
+        this.losslessCrop = losslessCrop;
+    }
+
+    /**
+     * Time from the shutter press to the start of exposure, negative for zero shutter lag frames
+     * exposed before the press.
+     */
+    double getShutterLagMs() {
+        return exposedAt < 0 ? 0 : (exposedAt - requestedAt) / 1_000_000.0;
+    }
+
+    boolean hasThumbnail() {
+        return thumbnail != null && thumbnailWidth != null && thumbnailWidth > 0 && thumbnailHeight != null && thumbnailHeight > 0;
+    }
+}
@@ -0,0 +1,100 @@
+package com.lihbr.plugins.camera2;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+
+/**
+ * A repeating request update waiting for a capture result to show the sensor running with it.
+ */
+class PendingControls {
+    /**
+     * Relative difference tolerated between requested and reported exposure time and ISO, as
+     * sensors round them to what they can do.
+     */
+    private static final double TOLERANCE = 0.02;
+
+    /**
+     * Latest control update merged into this one, see {@link ManualControls#sequence}.
+     */
+    final long sequence;
+
+    /**
+     * {@link SystemClock#elapsedRealtimeNanos()} at submission
+     */
+    final long submittedAt = SystemClock.elapsedRealtimeNanos();
+
+    /**
+     * Latest preview frame number delivered before submission, -1 if none were.
+     */
+    final long submittedAfterFrame;
+
+    /**
+     * Requested values, {@code null} for those left to the 3A routines.
+     */
+    final Long exposureTime;
+    final Integer iso;
+    final Float aperture;
+
+    /**
+     * The preview request carrying the update, replaced when it gets rebuilt before settling.
+     */
+    volatile CaptureRequest request;
+
+    PendingControls(long sequence, long submittedAfterFrame, Long exposureTime, Integer iso, Float aperture) {
+        this.sequence = sequence;
+        this.submittedAfterFrame = submittedAfterFrame;
+        this.exposureTime = exposureTime;
+        this.iso = iso;
+        this.aperture = aperture;
+    }
+
+    /**
+     * Whether a result comes from the request carrying the update and reports the requested
+     * values.
+     */
+    boolean isReflectedBy(TotalCaptureResult result) {
+        return result.getRequest() == request
+                && matches(exposureTime, result.get(CaptureResult.SENSOR_EXPOSURE_TIME))
+                && matches(iso, result.get(CaptureResult.SENSOR_SENSITIVITY))
+                && matches(aperture, result.get(CaptureResult.LENS_APERTURE));
+    }
+
+    /**
+     * The settings-applied event, with the latency from submission to the result.
+     */
+    JSObject toJSObject(TotalCaptureResult result) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("sequence", sequence);
+        jsObject.put("frameNumber", result.getFrameNumber());
+        jsObject.put("latencyFrames", submittedAfterFrame >= 0 ? result.getFrameNumber() - submittedAfterFrame : null);
+        jsObject.put("latencyMs", (SystemClock.elapsedRealtimeNanos() - submittedAt) / 1_000_000.0);
+
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        jsObject.put("shutterSpeed", exposureTime != null ? exposureTime / 1_000_000_000.0 : null);
+        jsObject.put("iso", result.get(CaptureResult.SENSOR_SENSITIVITY));
+        jsObject.put("aperture", result.get(CaptureResult.LENS_APERTURE));
+
+        return jsObject;
+    }
+
+    /**
+     * Whether a reported value is close enough to the requested one, {@code null} meaning
+     * either nothing was requested or the device doesn't report it.
+     */
+    static boolean matches(Number requested, Number reported) {
+        if (requested == null) {
+            return true;
+        }
+        if (reported == null) {
+            // Not reported by this device, there is nothing better to wait for
+            return true;
+        }
+
+        double expected = requested.doubleValue();
+        return Math.abs(reported.doubleValue() - expected) <= Math.max(Math.abs(expected) * TOLERANCE, 1e-3);
+    }
+}
@@ -0,0 +1,145 @@
+package com.lihbr.plugins.camera2;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thumbnails of pictures already on disk, written to disk as well, spread over the
+ * {@link EncodeExecutor} workers at {@link EncodeExecutor#PRIORITY_BATCH} so captures keep
+ * precedence. Thumbnails come from the {@link ThumbnailCache} when they were made before.
+ */
+final class ThumbnailBatch {
+    interface Listener {
+        /**
+         * Every item has been processed, successfully or not. Called from a worker thread.
+         */
+        void onBatchDone(ThumbnailBatch batch);
+    }
+
+    static final class Item {
+        final File picture;
+        final File thumbnail;
+        final int width;
+        final int height;
+        final int quality;
+
+        private volatile double mDurationMs;
+        private volatile String mError;
+
+        Item(File picture, File thumbnail, int width, int height, int quality) {
+            this.picture = picture;
+            this.thumbnail = thumbnail;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+        }
+    }
+
+    private static final String TAG = "ThumbnailBatch";
+
+    private final List<Item> mItems;
+    private final ThumbnailCache mCache;
+    private final Listener mListener;
+    private final AtomicInteger mRemaining;
+    private final long mStartedAt = SystemClock.elapsedRealtimeNanos();
+    private volatile long mDoneAt;
+
+    ThumbnailBatch(List<Item> items, ThumbnailCache cache, Listener listener) {
+        mItems = items;
+        mCache = cache;
+        mListener = listener;
+        mRemaining = new AtomicInteger(items.size());
+    }
+
+    void start() {
+        if (mItems.isEmpty()) {
+            mDoneAt = mStartedAt;
+            mListener.onBatchDone(this);
+            return;
+        }
+
+        for (Item item : mItems) {
+            EncodeExecutor.getInstance().execute(EncodeExecutor.PRIORITY_BATCH, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        process(item);
+                    } finally {
+                        // Whatever happened, the batch must not wait for this item forever
+                        if (mRemaining.decrementAndGet() == 0) {
+                            mDoneAt = SystemClock.elapsedRealtimeNanos();
+                            mListener.onBatchDone(ThumbnailBatch.this);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Results in item order, with their paths and timings.
+     */
+    JSObject toJSObject() {
+        JSArray items = new JSArray();
+        for (Item item : mItems) {
+            JSObject jsObject = new JSObject();
+            jsObject.put("path", item.picture.getAbsolutePath());
+            jsObject.put("outPath", item.thumbnail.getAbsolutePath());
+            jsObject.put("durationMs", item.mDurationMs);
+            if (item.mError != null) {
+                jsObject.put("error", item.mError);
+            }
+            items.put(jsObject);
+        }
+
+        JSObject result = new JSObject();
+        result.put("items", items);
+        result.put("durationMs", (mDoneAt - mStartedAt) / 1_000_000.0);
+
+        return result;
+    }
+
+    private void process(Item item) {
+        long startedAt = SystemClock.elapsedRealtimeNanos();
+        try {
+            byte[] thumbnail = mCache.get(item.picture, item.width, item.height, item.quality);
+            if (thumbnail == null) {
+                item.mError = "Cannot decode " + item.picture;
+                return;
+            }
+
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(item.thumbnail);
+                output.write(thumbnail);
+            } catch (IOException e) {
+                item.mError = "Cannot write " + item.thumbnail + ": " + e.getMessage();
+            } finally {
+                if (null != output) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Cannot close " + item.thumbnail + ": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // Corrupt or unexpected pictures must not take the batch down
+            item.mError = "Cannot make a thumbnail of " + item.picture + ": " + e;
+        } finally {
+            item.mDurationMs = (SystemClock.elapsedRealtimeNanos() - startedAt) / 1_000_000.0;
+            if (item.mError != null) {
+                Log.w(TAG, item.mError);
+            }
+        }
+    }
+}
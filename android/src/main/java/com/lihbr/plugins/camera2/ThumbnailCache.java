@@ -0,0 +1,295 @@
+package com.lihbr.plugins.camera2;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.getcapacitor.JSObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoded thumbnails of pictures on disk, so the gallery doesn't decode the same pictures again
+ * and again while scrolling. Entries are keyed by the picture path, modification time and length,
+ * along with the thumbnail size and quality, a picture rewritten in place getting new entries.
+ * <p>
+ * A {@link LruCache} of encoded JPEGs sits in front of a directory in the app cache, both bounded
+ * by a byte budget. The least recently used files are deleted once the directory goes over
+ * budget, hits refreshing their modification time.
+ */
+final class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    private static final String DIRECTORY = "camera2-thumbnails";
+
+    static final long DEFAULT_MEMORY_BUDGET = 8L * 1024 * 1024;
+    static final long DEFAULT_DISK_BUDGET = 64L * 1024 * 1024;
+
+    private static ThumbnailCache sInstance;
+
+    private final File mDirectory;
+    private final LruCache<String, byte[]> mMemory;
+    private long mDiskBudget = DEFAULT_DISK_BUDGET;
+
+    /**
+     * Bytes in {@link #mDirectory}, only accessed while holding the lock on this
+     */
+    private long mDiskSize = -1;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    static synchronized ThumbnailCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+
+        return sInstance;
+    }
+
+    private ThumbnailCache(File directory) {
+        mDirectory = directory;
+        mMemory = new LruCache<String, byte[]>((int) DEFAULT_MEMORY_BUDGET) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, byte[] oldValue, byte[] newValue) {
+                if (evicted) {
+                    mEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Changes the byte budgets, evicting entries right away if they are now over budget.
+     *
+     * @param memoryBudget Bytes kept in memory, {@code null} to leave it unchanged
+     * @param diskBudget   Bytes kept on disk, {@code null} to leave it unchanged
+     */
+    void configure(Long memoryBudget, Long diskBudget) {
+        if (memoryBudget != null) {
+            mMemory.resize((int) Math.max(1, Math.min(memoryBudget, Integer.MAX_VALUE)));
+        }
+
+        if (diskBudget != null) {
+            synchronized (this) {
+                mDiskBudget = Math.max(0, diskBudget);
+                trimDisk();
+            }
+        }
+    }
+
+    /**
+     * The JPEG thumbnail of a picture, from the cache or decoded and encoded on a miss.
+     *
+     * @return The thumbnail, {@code null} if the picture cannot be read or decoded
+     */
+    byte[] get(File picture, int width, int height, int quality) {
+        if (!picture.isFile()) {
+            return null;
+        }
+
+        String key = getKey(picture, width, height, quality);
+        byte[] thumbnail = mMemory.get(key);
+        if (thumbnail != null) {
+            mMemoryHits.incrementAndGet();
+            return thumbnail;
+        }
+
+        File file = new File(mDirectory, key);
+        thumbnail = readFile(file);
+        if (thumbnail != null) {
+            mDiskHits.incrementAndGet();
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            mMemory.put(key, thumbnail);
+            return thumbnail;
+        }
+
+        mMisses.incrementAndGet();
+        Bitmap bitmap = ThumbnailDecoder.decode(picture, width, height);
+        if (bitmap == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, output);
+        bitmap.recycle();
+        thumbnail = output.toByteArray();
+
+        mMemory.put(key, thumbnail);
+        writeFile(file, thumbnail);
+
+        return thumbnail;
+    }
+
+    synchronized void clear() {
+        mMemory.evictAll();
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        mDiskSize = 0;
+    }
+
+    JSObject getMetrics() {
+        JSObject metrics = new JSObject();
+        metrics.put("memoryHits", mMemoryHits.get());
+        metrics.put("diskHits", mDiskHits.get());
+        metrics.put("misses", mMisses.get());
+        metrics.put("evictions", mEvictions.get());
+        metrics.put("memorySize", mMemory.size());
+        metrics.put("memoryBudget", mMemory.maxSize());
+
+        synchronized (this) {
+            metrics.put("diskSize", getDiskSize());
+            metrics.put("diskBudget", mDiskBudget);
+        }
+
+        return metrics;
+    }
+
+    /**
+     * A file name for an entry, hashed as paths can be of any length.
+     */
+    private static String getKey(File picture, int width, int height, int quality) {
+        String key = picture.getAbsolutePath() + '|' + picture.lastModified() + '|' + picture.length()
+                + '|' + width + 'x' + height + '|' + quality;
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+
+            return name.append(".jpg").toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = input.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file + ": " + e.getMessage());
+            return null;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Writes an entry to a temporary file first, so a concurrent read never sees half of it.
+     */
+    private synchronized void writeFile(File file, byte[] thumbnail) {
+        if (mDiskBudget <= 0 || (!mDirectory.isDirectory() && !mDirectory.mkdirs())) {
+            return;
+        }
+
+        long previousLength = file.isFile() ? file.length() : 0;
+        File temporary = new File(mDirectory, file.getName() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            output.write(thumbnail);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file + ": " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+
+        if (!temporary.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            return;
+        }
+
+        mDiskSize = getDiskSize() - previousLength + thumbnail.length;
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently used files until the directory fits its budget.
+     */
+    private void trimDisk() {
+        if (getDiskSize() <= mDiskBudget) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (mDiskSize <= mDiskBudget) {
+                break;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                mDiskSize -= length;
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Bytes in the cache directory, scanned on first use only.
+     */
+    private long getDiskSize() {
+        if (mDiskSize < 0) {
+            mDiskSize = 0;
+
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    mDiskSize += file.length();
+                }
+            }
+        }
+
+        return mDiskSize;
+    }
+}
@@ -0,0 +1,121 @@
+package com.lihbr.plugins.camera2;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes JPEGs straight at thumbnail resolution: the decoder skips to the smallest power-of-two
+ * sample size still covering the thumbnail, the JPEG DCT scaling the image down for almost
+ * nothing, and only the few remaining pixels are filtered to the exact size.
+ */
+final class ThumbnailDecoder {
+    private static final String TAG = "ThumbnailDecoder";
+
+    private ThumbnailDecoder() {
+    }
+
+    /**
+     * Largest power of two the source can be divided by while still covering the target size.
+     */
+    static int getSampleSize(int sourceWidth, int sourceHeight, int width, int height) {
+        int sampleSize = 1;
+        while (sourceWidth / (sampleSize * 2) >= width && sourceHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * @return The thumbnail, {@code null} if the data cannot be decoded
+     */
+    static Bitmap decode(byte[] data, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+
+        return scale(BitmapFactory.decodeByteArray(data, 0, data.length, options), width, height);
+    }
+
+    /**
+     * @return The thumbnail, {@code null} if the file cannot be decoded
+     */
+    static Bitmap decode(File file, int width, int height) {
+        String path = file.getAbsolutePath();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, width, height);
+        options.inJustDecodeBounds = false;
+
+        return scale(BitmapFactory.decodeFile(path, options), width, height);
+    }
+
+    /**
+     * Decodes only part of a JPEG, the pixels outside of {@code region} are never decoded.
+     *
+     * @return The thumbnail, {@code null} if the data cannot be decoded
+     */
+    static Bitmap decodeRegion(byte[] data, Rect region, int width, int height) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = newRegionDecoder(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot decode region, decoding the whole image: " + e.getMessage());
+            return null;
+        }
+
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = getSampleSize(region.width(), region.height(), width, height);
+
+            return scale(decoder.decodeRegion(region, options), width, height);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static BitmapRegionDecoder newRegionDecoder(byte[] data) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return BitmapRegionDecoder.newInstance(data, 0, data.length);
+        }
+
+        // The isShareable flag is ignored since API 19, its overload is deprecated from API 31
+        return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    /**
+     * Scales a bitmap to the exact thumbnail size, if it isn't already. The source bitmap is
+     * recycled once scaled, callers hand it over.
+     */
+    static Bitmap scale(Bitmap bitmap, int width, int height) {
+        if (bitmap == null || (bitmap.getWidth() == width && bitmap.getHeight() == height)) {
+            return bitmap;
+        }
+
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+}
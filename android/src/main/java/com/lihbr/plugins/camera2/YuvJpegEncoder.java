@@ -0,0 +1,73 @@
+package com.lihbr.plugins.camera2;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes {@link ImageFormat#YUV_420_888} images to JPEG, for zero shutter lag frames the camera
+ * cannot reprocess itself.
+ */
+final class YuvJpegEncoder {
+    private YuvJpegEncoder() {
+    }
+
+    /**
+     * Encodes part of an image, cropping costs nothing at this point.
+     *
+     * @param crop The area to encode, its origin is rounded down to even coordinates as chroma is
+     *             subsampled
+     * @return {@code false} if the image couldn't be encoded
+     */
+    static boolean encode(Image image, Rect crop, int quality, OutputStream output) {
+        YuvImage yuvImage = new YuvImage(toNv21(image), ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
+
+        int left = crop.left & ~1;
+        int top = crop.top & ~1;
+        Rect aligned = new Rect(left, top, left + crop.width(), top + crop.height());
+
+        return yuvImage.compressToJpeg(aligned, quality, output);
+    }
+
+    /**
+     * Packs the planes of a {@link ImageFormat#YUV_420_888} image as NV21, whatever their row and
+     * pixel strides.
+     */
+    private static byte[] toNv21(Image image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        byte[] nv21 = new byte[width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+
+        // Luma, the pixel stride of the Y plane is always 1
+        ByteBuffer y = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.get(nv21, row * width, width);
+        }
+
+        // Interleaved chroma, V first
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride();
+        int vRowStride = planes[2].getRowStride();
+        int uPixelStride = planes[1].getPixelStride();
+        int vPixelStride = planes[2].getPixelStride();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int offset = width * height;
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int col = 0; col < chromaWidth; col++) {
+                nv21[offset++] = v.get(row * vRowStride + col * vPixelStride);
+                nv21[offset++] = u.get(row * uRowStride + col * uPixelStride);
+            }
+        }
+
+        return nv21;
+    }
+}
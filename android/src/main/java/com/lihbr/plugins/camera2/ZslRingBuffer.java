@@ -0,0 +1,177 @@
+package com.lihbr.plugins.camera2;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * A ring of the most recent full resolution frames streamed by the repeating request, along
+ * with their {@link TotalCaptureResult}s, for zero shutter lag captures.
+ * <p>
+ * Frames are either {@link ImageFormat#PRIVATE}, reprocessed into a JPEG by the camera, or
+ * {@link ImageFormat#YUV_420_888} no larger than the preview, encoded in software. The ring
+ * holds as many frames as the memory budget allows, the oldest ones being closed as new ones
+ * come in. Runs on the camera background thread.
+ */
+final class ZslRingBuffer {
+    static final class Frame {
+        final Image image;
+        final TotalCaptureResult result;
+
+        Frame(Image image, TotalCaptureResult result) {
+            this.image = image;
+            this.result = result;
+        }
+
+        long getTimestamp() {
+            return image.getTimestamp();
+        }
+    }
+
+    private static final String TAG = "ZslRingBuffer";
+
+    /**
+     * Images allowed out of the ring on top of its capacity: waiting for their result, or taken
+     * and still being reprocessed or encoded.
+     */
+    private static final int IMAGES_IN_FLIGHT = 3;
+
+    /**
+     * Upper bound of the ring capacity, whatever the memory budget.
+     */
+    private static final int MAX_CAPACITY = 16;
+
+    private final int mCapacity;
+    private final boolean mReprocessable;
+    private final ImageReader mImageReader;
+    private final ArrayDeque<Frame> mFrames = new ArrayDeque<>();
+    private final CaptureResultMatcher<Image, TotalCaptureResult> mMatcher = new CaptureResultMatcher<>(new CaptureResultMatcher.Listener<Image, TotalCaptureResult>() {
+        @Override
+        public void onMatched(Image image, TotalCaptureResult result) {
+            add(new Frame(image, result));
+        }
+
+        @Override
+        public void onResultDropped(TotalCaptureResult result) {
+            // Results of frames that didn't make it into the ring
+        }
+    });
+
+    /**
+     * @param format       {@link ImageFormat#PRIVATE} if the frames are reprocessed,
+     *                     {@link ImageFormat#YUV_420_888} otherwise
+     * @param memoryBudget Bytes the ring may use
+     */
+    ZslRingBuffer(Size size, int format, long memoryBudget, Handler handler) {
+        mCapacity = getCapacity(size, memoryBudget);
+        mReprocessable = format == ImageFormat.PRIVATE;
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(), format, mCapacity + IMAGES_IN_FLIGHT);
+        mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = acquireNextImage(reader);
+                if (image != null) {
+                    mMatcher.onImage(image, image.getTimestamp());
+                }
+            }
+        }, handler);
+
+        Log.d(TAG, "Keeping up to " + mCapacity + " frames of " + size + (mReprocessable ? ", reprocessed" : ", encoded in software"));
+    }
+
+    /**
+     * Frames fitting in a memory budget, counting 12 bits per pixel for both formats.
+     */
+    static int getCapacity(Size size, long memoryBudget) {
+        long frameSize = (long) size.getWidth() * size.getHeight() * 3 / 2;
+        return (int) Math.max(1, Math.min(memoryBudget / frameSize, MAX_CAPACITY));
+    }
+
+    Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    Size getSize() {
+        return new Size(mImageReader.getWidth(), mImageReader.getHeight());
+    }
+
+    boolean isReprocessable() {
+        return mReprocessable;
+    }
+
+    void onResult(TotalCaptureResult result) {
+        mMatcher.onResult(result, result.get(CaptureResult.SENSOR_TIMESTAMP));
+    }
+
+    /**
+     * Takes a frame out of the ring, the caller has to close its image.
+     *
+     * @param timestamp  The shutter press, in the sensor timestamp base
+     * @param comparable Whether {@code timestamp} can be compared to sensor timestamps, the most
+     *                   recent frame is taken otherwise
+     * @return The frame closest to {@code timestamp}, {@code null} if the ring is empty
+     */
+    synchronized Frame take(long timestamp, boolean comparable) {
+        Frame best = null;
+        for (Frame frame : mFrames) {
+            if (best == null || !comparable
+                    || Math.abs(frame.getTimestamp() - timestamp) < Math.abs(best.getTimestamp() - timestamp)) {
+                best = frame;
+            }
+        }
+
+        if (best != null) {
+            mFrames.remove(best);
+        }
+
+        return best;
+    }
+
+    synchronized void close() {
+        mMatcher.clear();
+
+        Frame frame;
+        while ((frame = mFrames.pollFirst()) != null) {
+            frame.image.close();
+        }
+        mImageReader.close();
+    }
+
+    private synchronized void add(Frame frame) {
+        mFrames.addLast(frame);
+        while (mFrames.size() > mCapacity) {
+            mFrames.removeFirst().image.close();
+        }
+    }
+
+    private Image acquireNextImage(ImageReader reader) {
+        try {
+            return reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            // Too many images held, make room by giving up the oldest frame
+            synchronized (this) {
+                Frame oldest = mFrames.pollFirst();
+                if (oldest == null) {
+                    Log.w(TAG, "No room for a new frame, skipping it");
+                    return null;
+                }
+                oldest.image.close();
+            }
+
+            try {
+                return reader.acquireNextImage();
+            } catch (IllegalStateException retryException) {
+                Log.w(TAG, "No room for a new frame, skipping it");
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.lihbr.plugins.camera2;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureResultMatcherTest {
+
+    private static final class FakeImage implements AutoCloseable {
+        final long timestamp;
+        boolean closed;
+
+        FakeImage(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final List<FakeImage> mMatchedImages = new ArrayList<>();
+    private final List<String> mMatchedResults = new ArrayList<>();
+    private final List<String> mDroppedResults = new ArrayList<>();
+    private CaptureResultMatcher<FakeImage, String> mMatcher;
+
+    @Before
+    public void setUp() {
+        mMatcher = new CaptureResultMatcher<>(new CaptureResultMatcher.Listener<FakeImage, String>() {
+            @Override
+            public void onMatched(FakeImage image, String result) {
+                mMatchedImages.add(image);
+                mMatchedResults.add(result);
+            }
+
+            @Override
+            public void onResultDropped(String result) {
+                mDroppedResults.add(result);
+            }
+        });
+    }
+
+    @Test
+    public void imageThenResult_areMatched() {
+        FakeImage image = new FakeImage(100);
+        mMatcher.onImage(image, image.timestamp);
+        assertTrue(mMatchedImages.isEmpty());
+
+        mMatcher.onResult("result", 100L);
+        assertEquals(1, mMatchedImages.size());
+        assertSame(image, mMatchedImages.get(0));
+        assertEquals("result", mMatchedResults.get(0));
+        assertFalse(image.closed);
+    }
+
+    @Test
+    public void resultThenImage_areMatched() {
+        mMatcher.onResult("result", 100L);
+        FakeImage image = new FakeImage(100);
+        mMatcher.onImage(image, image.timestamp);
+
+        assertEquals(1, mMatchedImages.size());
+        assertSame(image, mMatchedImages.get(0));
+        assertEquals("result", mMatchedResults.get(0));
+    }
+
+    @Test
+    public void differentTimestamps_areNotMatched() {
+        mMatcher.onResult("result", 100L);
+        mMatcher.onImage(new FakeImage(200), 200);
+
+        assertTrue(mMatchedImages.isEmpty());
+    }
+
+    @Test
+    public void resultWithoutTimestamp_isDropped() {
+        mMatcher.onResult("result", null);
+
+        assertEquals(1, mDroppedResults.size());
+        assertEquals("result", mDroppedResults.get(0));
+    }
+
+    @Test
+    public void duplicateImage_closesTheFirstOne() {
+        FakeImage first = new FakeImage(100);
+        FakeImage second = new FakeImage(100);
+        mMatcher.onImage(first, first.timestamp);
+        mMatcher.onImage(second, second.timestamp);
+        assertTrue(first.closed);
+
+        mMatcher.onResult("result", 100L);
+        assertSame(second, mMatchedImages.get(0));
+        assertFalse(second.closed);
+    }
+
+    @Test
+    public void tooManyPending_dropsTheOldest() {
+        List<FakeImage> images = new ArrayList<>();
+        for (int i = 0; i < CaptureResultMatcher.MAX_PENDING; i++) {
+            FakeImage image = new FakeImage(i);
+            images.add(image);
+            mMatcher.onImage(image, image.timestamp);
+        }
+        mMatcher.onResult("late", 1_000L);
+        mMatcher.onResult("later", 1_001L);
+
+        assertTrue(images.get(0).closed);
+        assertTrue(images.get(1).closed);
+        assertFalse(images.get(2).closed);
+        assertTrue(mDroppedResults.isEmpty());
+
+        // Results are reported dropped the same way
+        for (int i = 0; i < CaptureResultMatcher.MAX_PENDING; i++) {
+            mMatcher.onImage(new FakeImage(2_000 + i), 2_000 + i);
+        }
+        assertEquals(2, mDroppedResults.size());
+        assertTrue(mMatchedImages.isEmpty());
+    }
+
+    @Test
+    public void clear_dropsEverything() {
+        FakeImage image = new FakeImage(100);
+        mMatcher.onImage(image, image.timestamp);
+        mMatcher.onResult("result", 200L);
+
+        mMatcher.clear();
+        assertTrue(image.closed);
+        assertEquals(1, mDroppedResults.size());
+
+        // Nothing is left to match
+        mMatcher.onResult("other", 100L);
+        assertTrue(mMatchedImages.isEmpty());
+    }
+
+    @Test
+    public void concurrentCallbacks_matchEveryPair() throws InterruptedException {
+        final int count = 10_000;
+        final FakeImage[] images = new FakeImage[count];
+        for (int i = 0; i < count; i++) {
+            images[i] = new FakeImage(i);
+        }
+
+        final List<FakeImage> matched = new ArrayList<>();
+        final CaptureResultMatcher<FakeImage, String> matcher = new CaptureResultMatcher<>(new CaptureResultMatcher.Listener<FakeImage, String>() {
+            @Override
+            public void onMatched(FakeImage image, String result) {
+                assertEquals(String.valueOf(image.timestamp), result);
+                synchronized (matched) {
+                    matched.add(image);
+                }
+            }
+
+            @Override
+            public void onResultDropped(String result) {
+                fail("Dropped " + result);
+            }
+        });
+
+        // Each pair is handed to both threads before either moves on, as the camera does
+        final Object lock = new Object();
+        final int[] released = {0};
+        Thread imageThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    await(lock, released, i);
+                    matcher.onImage(images[i], images[i].timestamp);
+                }
+            }
+        });
+        imageThread.start();
+        for (int i = 0; i < count; i++) {
+            synchronized (lock) {
+                released[0] = i + 1;
+                lock.notifyAll();
+            }
+            matcher.onResult(String.valueOf(i), (long) i);
+            // Keep at most a few pairs in flight, below the matcher capacity
+            while (i - countMatched(matched) > CaptureResultMatcher.MAX_PENDING / 4 && imageThread.isAlive()) {
+                Thread.yield();
+            }
+        }
+        imageThread.join();
+
+        assertEquals(count, matched.size());
+        for (FakeImage image : images) {
+            assertFalse(image.closed);
+        }
+    }
+
+    private static void await(Object lock, int[] released, int index) {
+        synchronized (lock) {
+            while (released[0] <= index) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int countMatched(List<FakeImage> matched) {
+        synchronized (matched) {
+            return matched.size();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.lihbr.plugins.camera2;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ControlsCoalescerTest {
+
+    private final List<Long> mApplied = new ArrayList<>();
+
+    @Test
+    public void add_firstUpdateAsksForAFlush() {
+        ControlsCoalescer coalescer = new ControlsCoalescer();
+
+        assertTrue(coalescer.add(controls(1, 1_000L, null)));
+        assertFalse(coalescer.add(controls(2, null, 100)));
+
+        ControlsCoalescer.Batch batch = coalescer.poll(false);
+        assertNotNull(batch);
+        assertEquals(2, batch.controls.sequence);
+        assertEquals(Long.valueOf(1_000L), batch.controls.shutterSpeed);
+        assertEquals(Integer.valueOf(100), batch.controls.iso);
+        assertEquals(2, batch.listeners.size());
+
+        // Nothing is left
+        assertNull(coalescer.poll(false));
+        assertTrue(coalescer.add(controls(3, null, 200)));
+    }
+
+    @Test
+    public void poll_waitsForAFrameAfterSubmitting() {
+        ControlsCoalescer coalescer = new ControlsCoalescer();
+        coalescer.add(controls(1, 1_000L, null));
+        assertNotNull(coalescer.poll(false));
+        coalescer.onSubmitted();
+
+        coalescer.add(controls(2, 2_000L, null));
+        assertNull(coalescer.poll(false));
+
+        coalescer.onFrame();
+        ControlsCoalescer.Batch batch = coalescer.poll(false);
+        assertNotNull(batch);
+        assertEquals(Long.valueOf(2_000L), batch.controls.shutterSpeed);
+    }
+
+    @Test
+    public void setManualControlsDuringCapture_waitsForTheCaptureToFinish() {
+        ControlsCoalescer coalescer = new ControlsCoalescer();
+        ManualControls first = controls(1, 1_000L, null);
+        ManualControls second = controls(2, null, 400);
+        coalescer.add(first);
+
+        // Frames keep coming during the lock stage, the update must not go out with them
+        coalescer.onFrame();
+        assertNull(coalescer.poll(true));
+        coalescer.add(second);
+        coalescer.onFrame();
+        assertNull(coalescer.poll(true));
+        assertTrue(mApplied.isEmpty());
+
+        // Once the capture is over, both updates go out together
+        ControlsCoalescer.Batch batch = coalescer.poll(false);
+        assertNotNull(batch);
+        assertEquals(2, batch.controls.sequence);
+        assertEquals(Long.valueOf(1_000L), batch.controls.shutterSpeed);
+        assertEquals(Integer.valueOf(400), batch.controls.iso);
+        assertSame(first, batch.listeners.get(0));
+        assertSame(second, batch.listeners.get(1));
+
+        for (ManualControls listener : batch.listeners) {
+            listener.onApplied(42);
+        }
+        assertEquals(2, mApplied.size());
+    }
+
+    @Test
+    public void add_withoutListener_isMergedButNotWaitedOn() {
+        ControlsCoalescer coalescer = new ControlsCoalescer();
+        ManualControls controls = new ManualControls(null);
+        controls.sequence = 1;
+        controls.focus = 2.5f;
+        coalescer.add(controls);
+
+        ControlsCoalescer.Batch batch = coalescer.poll(false);
+        assertNotNull(batch);
+        assertEquals(Float.valueOf(2.5f), batch.controls.focus);
+        assertTrue(batch.listeners.isEmpty());
+    }
+
+    private ManualControls controls(long sequence, Long shutterSpeed, Integer iso) {
+        ManualControls controls = new ManualControls(new ManualControls.Listener() {
+            @Override
+            public void onApplied(ManualControls controls, long frameNumber) {
+                mApplied.add(frameNumber);
+            }
+
+            @Override
+            public void onFailed(String message) {
+                fail(message);
+            }
+        });
+        controls.sequence = sequence;
+        controls.shutterSpeed = shutterSpeed;
+        controls.iso = iso;
+        return controls;
+    }
+}
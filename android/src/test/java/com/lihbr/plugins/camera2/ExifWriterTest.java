@@ -0,0 +1,309 @@
+package com.lihbr.plugins.camera2;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ExifWriterTest {
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_PHOTOGRAPHIC_SENSITIVITY = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_MAKER_NOTE = 0x927C;
+
+    @Test
+    public void orientationFromDegrees_mapsRotations() {
+        assertEquals(1, ExifWriter.orientationFromDegrees(0));
+        assertEquals(6, ExifWriter.orientationFromDegrees(90));
+        assertEquals(3, ExifWriter.orientationFromDegrees(180));
+        assertEquals(8, ExifWriter.orientationFromDegrees(270));
+    }
+
+    @Test
+    public void toApp1Segment_writesTags() {
+        ExifWriter writer = new ExifWriter();
+        writer.setDateTime("2024:01:02 03:04:05");
+        writer.setOrientation(6);
+        writer.setIso(400);
+        writer.setExposureTime(8_000_000L);
+        writer.setFNumber(1.8f);
+        writer.setFocalLength(4.5f);
+
+        byte[] segment = writer.toApp1Segment();
+        assertEquals(0xFF, segment[0] & 0xFF);
+        assertEquals(0xE1, segment[1] & 0xFF);
+        assertEquals(segment.length - 2, ((segment[2] & 0xFF) << 8) | (segment[3] & 0xFF));
+        assertEquals("Exif\0\0", new String(segment, 4, 6, StandardCharsets.US_ASCII));
+
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 10, segment.length - 10).slice();
+        assertEquals("MM", new String(segment, 10, 2, StandardCharsets.US_ASCII));
+
+        Map<Integer, byte[]> ifd0 = readIfd(tiff, tiff.getInt(4));
+        assertEquals(6, ByteBuffer.wrap(ifd0.get(TAG_ORIENTATION)).getShort());
+        assertEquals("2024:01:02 03:04:05\0", ascii(ifd0.get(TAG_DATETIME)));
+
+        Map<Integer, byte[]> exifIfd = readIfd(tiff, ByteBuffer.wrap(ifd0.get(TAG_EXIF_IFD_POINTER)).getInt());
+        assertEquals("2024:01:02 03:04:05\0", ascii(exifIfd.get(TAG_DATETIME_ORIGINAL)));
+        assertEquals(400, ByteBuffer.wrap(exifIfd.get(TAG_PHOTOGRAPHIC_SENSITIVITY)).getShort());
+        assertArrayEquals(new int[]{1, 125}, rational(exifIfd.get(TAG_EXPOSURE_TIME)));
+        assertArrayEquals(new int[]{180, 100}, rational(exifIfd.get(TAG_F_NUMBER)));
+        assertArrayEquals(new int[]{4500, 1000}, rational(exifIfd.get(TAG_FOCAL_LENGTH)));
+        assertEquals("4.5\0", ascii(exifIfd.get(TAG_MAKER_NOTE)));
+        assertEquals("0230", ascii(exifIfd.get(TAG_EXIF_VERSION)));
+    }
+
+    @Test
+    public void setExposureTime_fitsLongExposuresInRationals() {
+        ExifWriter writer = new ExifWriter();
+        writer.setExposureTime(5_000_000_001L);
+
+        Map<Integer, byte[]> exifIfd = readExifIfd(writer.toApp1Segment());
+        int[] exposureTime = rational(exifIfd.get(TAG_EXPOSURE_TIME));
+        assertEquals(5.0, (exposureTime[0] & 0xFFFFFFFFL) / (double) exposureTime[1], 1e-6);
+    }
+
+    @Test
+    public void setIso_clampsToShort() {
+        ExifWriter writer = new ExifWriter();
+        writer.setIso(100_000);
+
+        Map<Integer, byte[]> exifIfd = readExifIfd(writer.toApp1Segment());
+        assertEquals(0xFFFF, ByteBuffer.wrap(exifIfd.get(TAG_PHOTOGRAPHIC_SENSITIVITY)).getShort() & 0xFFFF);
+    }
+
+    @Test
+    public void writeJpeg_replacesExistingExif() throws IOException {
+        ExifWriter camera = new ExifWriter();
+        camera.setOrientation(3);
+        byte[] source = insertAfterSoi(encode(), camera.toApp1Segment());
+        assertEquals(3, ExifWriter.readOrientation(ByteBuffer.wrap(source)));
+
+        ExifWriter writer = new ExifWriter();
+        writer.setOrientation(6);
+        byte[] app1 = writer.toApp1Segment();
+
+        File file = File.createTempFile("exif", ".jpg");
+        try {
+            long written;
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                written = ExifWriter.writeJpeg(output.getChannel(), app1, ByteBuffer.wrap(source));
+            }
+
+            byte[] jpeg = Files.readAllBytes(file.toPath());
+            assertEquals(jpeg.length, written);
+            assertEquals(6, ExifWriter.readOrientation(ByteBuffer.wrap(jpeg)));
+            assertEquals(1, countExifSegments(jpeg));
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(jpeg)));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void writeJpeg_rejectsOtherStreams() throws IOException {
+        File file = File.createTempFile("exif", ".jpg");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            ExifWriter.writeJpeg(output.getChannel(), new ExifWriter().toApp1Segment(), ByteBuffer.wrap(new byte[16]));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void readOrientation_withoutExif_returnsUndefined() throws IOException {
+        assertEquals(0, ExifWriter.readOrientation(ByteBuffer.wrap(encode())));
+    }
+
+    @Test
+    public void readOrientation_withTruncatedExif_returnsUndefined() throws IOException {
+        // An EXIF segment whose length ends before its own header
+        byte[] segment = {(byte) 0xFF, (byte) 0xE1, 0, 2, 'E', 'x', 'i', 'f', 0, 0};
+        assertEquals(0, ExifWriter.readOrientation(ByteBuffer.wrap(insertAfterSoi(encode(), segment))));
+    }
+
+    @Test
+    public void writeJpeg_writesThePictureOnce() throws IOException {
+        ExifWriter camera = new ExifWriter();
+        camera.setOrientation(1);
+        byte[] source = insertAfterSoi(encode(1280, 960), camera.toApp1Segment());
+
+        ExifWriter writer = new ExifWriter();
+        writer.setDateTime("2024:01:02 03:04:05");
+        writer.setOrientation(6);
+        writer.setIso(400);
+        byte[] app1 = writer.toApp1Segment();
+
+        File file = File.createTempFile("exif", ".jpg");
+        try {
+            // The picture used to be written as-is, then read back and rewritten whole by
+            // ExifInterface.saveAttributes with its EXIF
+            FileCounter rewrite = new FileCounter(file);
+            rewrite.write(null, ByteBuffer.wrap(source));
+            byte[] saved = rewrite.read();
+            rewrite.write(app1, ByteBuffer.wrap(saved));
+            byte[] rewritten = Files.readAllBytes(file.toPath());
+
+            FileCounter single = new FileCounter(file);
+            single.write(app1, ByteBuffer.wrap(source));
+            byte[] jpeg = Files.readAllBytes(file.toPath());
+
+            assertArrayEquals(rewritten, jpeg);
+            assertEquals(2, rewrite.passes);
+            assertEquals(source.length, rewrite.read);
+            assertEquals(source.length + jpeg.length, rewrite.written);
+            assertEquals(1, single.passes);
+            assertEquals(0, single.read);
+            assertEquals(jpeg.length, single.written);
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    /**
+     * Counts the passes over a file and the bytes going through them.
+     */
+    private static final class FileCounter {
+        final File file;
+        int passes;
+        long written;
+        long read;
+
+        FileCounter(File file) {
+            this.file = file;
+        }
+
+        void write(byte[] app1, ByteBuffer jpeg) throws IOException {
+            passes++;
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                output.setLength(0);
+                if (app1 != null) {
+                    written += ExifWriter.writeJpeg(output.getChannel(), app1, jpeg);
+                } else {
+                    while (jpeg.hasRemaining()) {
+                        written += output.getChannel().write(jpeg);
+                    }
+                }
+            }
+        }
+
+        byte[] read() throws IOException {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            read += bytes.length;
+            return bytes;
+        }
+    }
+
+    private static Map<Integer, byte[]> readExifIfd(byte[] segment) {
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 10, segment.length - 10).slice();
+        Map<Integer, byte[]> ifd0 = readIfd(tiff, tiff.getInt(4));
+        return readIfd(tiff, ByteBuffer.wrap(ifd0.get(TAG_EXIF_IFD_POINTER)).getInt());
+    }
+
+    /**
+     * Values of the entries of a big-endian IFD by tag, checking tags are in ascending order.
+     */
+    private static Map<Integer, byte[]> readIfd(ByteBuffer tiff, int offset) {
+        Map<Integer, byte[]> entries = new HashMap<>();
+        int count = tiff.getShort(offset) & 0xFFFF;
+        int previousTag = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = offset + 2 + i * 12;
+            int tag = tiff.getShort(entry) & 0xFFFF;
+            int type = tiff.getShort(entry + 2) & 0xFFFF;
+            int components = tiff.getInt(entry + 4);
+            assertTrue("Tags are sorted", tag > previousTag);
+            previousTag = tag;
+
+            int size = components * getTypeSize(type);
+            int valueOffset = size > 4 ? tiff.getInt(entry + 8) : entry + 8;
+            byte[] value = new byte[size];
+            for (int j = 0; j < size; j++) {
+                value[j] = tiff.get(valueOffset + j);
+            }
+            entries.put(tag, value);
+        }
+        return entries;
+    }
+
+    private static int getTypeSize(int type) {
+        switch (type) {
+            case 3:
+                return 2;
+            case 4:
+                return 4;
+            case 5:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    private static int[] rational(byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        return new int[]{buffer.getInt(), buffer.getInt()};
+    }
+
+    private static String ascii(byte[] value) {
+        return new String(value, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] encode() throws IOException {
+        return encode(32, 16);
+    }
+
+    private static byte[] encode(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7 + y * 13) ^ (x * y));
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpeg", output));
+        return output.toByteArray();
+    }
+
+    private static byte[] insertAfterSoi(byte[] jpeg, byte[] segment) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(jpeg, 0, 2);
+        output.write(segment, 0, segment.length);
+        output.write(jpeg, 2, jpeg.length - 2);
+        return output.toByteArray();
+    }
+
+    private static int countExifSegments(byte[] jpeg) {
+        int count = 0;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xDA) {
+                break;
+            }
+            if (marker == 0xE1 && new String(jpeg, pos + 4, 4, StandardCharsets.US_ASCII).equals("Exif")) {
+                count++;
+            }
+            pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+        }
+        return count;
+    }
+}
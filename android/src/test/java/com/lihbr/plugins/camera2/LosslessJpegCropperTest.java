@@ -0,0 +1,258 @@
+package com.lihbr.plugins.camera2;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.junit.Test;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+public class LosslessJpegCropperTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 60;
+
+    @Test
+    public void readSize_readsFrameHeader() throws IOException {
+        byte[] jpeg = encode(createImage(), 2, 2, 0, false);
+
+        assertArrayEquals(new int[]{WIDTH, HEIGHT}, LosslessJpegCropper.readSize(ByteBuffer.wrap(jpeg)));
+        assertNull(LosslessJpegCropper.readSize(ByteBuffer.wrap(new byte[]{0, 1, 2, 3})));
+    }
+
+    @Test
+    public void crop_444_decodesToSourcePixels() throws IOException {
+        BufferedImage source = createImage();
+        byte[] jpeg = encode(source, 1, 1, 0, false);
+
+        // 8x8 MCUs, origin aligned down to (16, 8)
+        assertCrop(jpeg, 21, 13, 40, 30, 16, 8, 0);
+    }
+
+    @Test
+    public void crop_422_alignsOriginToMcu() throws IOException {
+        BufferedImage source = createImage();
+        byte[] jpeg = encode(source, 2, 1, 0, false);
+
+        // 16x8 MCUs, origin aligned down to (16, 8)
+        assertCrop(jpeg, 21, 13, 40, 30, 16, 8, 1);
+    }
+
+    @Test
+    public void crop_420_alignsOriginToMcu() throws IOException {
+        BufferedImage source = createImage();
+        byte[] jpeg = encode(source, 2, 2, 0, false);
+
+        // 16x16 MCUs, origin aligned down to (16, 0)
+        assertCrop(jpeg, 21, 13, 40, 30, 16, 0, 1);
+    }
+
+    @Test
+    public void crop_withRestartIntervals_skipsThemAndResetsPredictions() throws IOException {
+        BufferedImage source = createImage();
+        byte[] jpeg = encode(source, 2, 2, 2, false);
+
+        // Several intervals lie entirely before or beside the crop
+        byte[] cropped = assertCrop(jpeg, 40, 20, 30, 30, 32, 16, 1);
+        assertTrue("Restart markers are dropped", indexOfMarker(cropped, 0xDD) < 0);
+    }
+
+    @Test
+    public void crop_withRestartIntervals_matchesCropWithout() throws IOException {
+        BufferedImage source = createImage();
+        byte[] withRestarts = encode(source, 1, 1, 3, false);
+        byte[] withoutRestarts = encode(source, 1, 1, 0, false);
+
+        ByteBuffer a = LosslessJpegCropper.crop(ByteBuffer.wrap(withRestarts), 8, 8, 48, 32);
+        ByteBuffer b = LosslessJpegCropper.crop(ByteBuffer.wrap(withoutRestarts), 8, 8, 48, 32);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertArrayEquals(getPixels(decode(toArray(b))), getPixels(decode(toArray(a))));
+    }
+
+    @Test
+    public void crop_progressive_returnsNull() throws IOException {
+        byte[] jpeg = encode(createImage(), 2, 2, 0, true);
+
+        assertNull(LosslessJpegCropper.crop(ByteBuffer.wrap(jpeg), 16, 16, 32, 32));
+    }
+
+    @Test
+    public void crop_multiScan_returnsNull() throws IOException {
+        byte[] jpeg = toSingleComponentFirstScan(encode(createImage(), 1, 1, 0, false));
+
+        assertNull(LosslessJpegCropper.crop(ByteBuffer.wrap(jpeg), 16, 16, 32, 32));
+    }
+
+    /**
+     * Crops the JPEG and compares the decoded crop with the decoded source at the aligned origin.
+     *
+     * @param margin Pixels along the crop edges left out, chroma upsampling reading samples the
+     *               crop doesn't have
+     */
+    private static byte[] assertCrop(byte[] jpeg, int x, int y, int width, int height, int alignedX, int alignedY, int margin) throws IOException {
+        ByteBuffer cropped = LosslessJpegCropper.crop(ByteBuffer.wrap(jpeg), x, y, width, height);
+        assertNotNull(cropped);
+
+        byte[] bytes = toArray(cropped);
+        assertArrayEquals(new int[]{width, height}, LosslessJpegCropper.readSize(ByteBuffer.wrap(bytes)));
+
+        BufferedImage expected = decode(jpeg);
+        BufferedImage actual = decode(bytes);
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        for (int row = margin; row < height - margin; row++) {
+            for (int column = margin; column < width - margin; column++) {
+                assertEquals(
+                        "Pixel " + column + "," + row,
+                        expected.getRGB(alignedX + column, alignedY + row),
+                        actual.getRGB(column, row)
+                );
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Noisy enough for DC predictions to vary from block to block.
+     */
+    private static BufferedImage createImage() {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = (x * 255 / WIDTH + random.nextInt(32)) & 0xFF;
+                int g = (y * 255 / HEIGHT + random.nextInt(32)) & 0xFF;
+                int b = ((x + y) * 4 + random.nextInt(32)) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes a baseline JPEG, or a progressive one.
+     *
+     * @param h               Horizontal luma sampling factor, chroma being sampled once per MCU
+     * @param v               Vertical luma sampling factor
+     * @param restartInterval MCUs per restart interval, {@code 0} for none
+     */
+    private static byte[] encode(BufferedImage image, int h, int v, int restartInterval, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+        IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+
+        NodeList components = markers.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", String.valueOf(i == 0 ? h : 1));
+            component.setAttribute("VsamplingFactor", String.valueOf(i == 0 ? v : 1));
+        }
+        if (restartInterval > 0) {
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            Node sof = markers.getElementsByTagName("sof").item(0);
+            markers.insertBefore(dri, sof);
+        }
+        metadata.setFromTree(format, root);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+
+        byte[] jpeg = output.toByteArray();
+        assertEquals("Restart marker", restartInterval > 0, indexOfMarker(jpeg, 0xDD) >= 0);
+        assertEquals("Progressive frame", progressive, indexOfMarker(jpeg, 0xC2) >= 0);
+        return jpeg;
+    }
+
+    /**
+     * Rewrites the scan header so it only holds the first component, like the first scan of a
+     * non-interleaved multi-scan JPEG.
+     */
+    private static byte[] toSingleComponentFirstScan(byte[] jpeg) {
+        int sos = indexOfMarker(jpeg, 0xDA);
+        int components = jpeg[sos + 4] & 0xFF;
+        assertEquals(3, components);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write(jpeg, 0, sos + 2);
+        output.write(0);
+        output.write(8);
+        output.write(1);
+        output.write(jpeg, sos + 5, 2);
+        output.write(jpeg, sos + 5 + components * 2, 3);
+        int scanData = sos + 8 + components * 2;
+        output.write(jpeg, scanData, jpeg.length - scanData);
+        return output.toByteArray();
+    }
+
+    /**
+     * Offset of the first header segment with the given marker, {@code -1} if there is none.
+     */
+    private static int indexOfMarker(byte[] jpeg, int marker) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int current = jpeg[pos + 1] & 0xFF;
+            if (current == marker) {
+                return pos;
+            }
+            if (current == 0xDA || current == 0xD9) {
+                return -1;
+            }
+            pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+        }
+        return -1;
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(stream);
+            return reader.read(0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static int[] getPixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package com.lihbr.plugins.camera2;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PendingControlsTest {
+
+    @Test
+    public void matches_nothingRequested() {
+        assertTrue(PendingControls.matches(null, 1_000_000L));
+        assertTrue(PendingControls.matches(null, null));
+    }
+
+    @Test
+    public void matches_notReported() {
+        assertTrue(PendingControls.matches(100, null));
+    }
+
+    @Test
+    public void matches_exactValue() {
+        assertTrue(PendingControls.matches(10_000_000L, 10_000_000L));
+        assertTrue(PendingControls.matches(400, 400));
+        assertTrue(PendingControls.matches(1.8f, 1.8f));
+    }
+
+    @Test
+    public void matches_withinTolerance() {
+        // Sensors round exposure time and ISO to what they can do
+        assertTrue(PendingControls.matches(10_000_000L, 10_150_000L));
+        assertTrue(PendingControls.matches(400, 392));
+        assertTrue(PendingControls.matches(1.8f, 1.8004f));
+    }
+
+    @Test
+    public void matches_outsideTolerance() {
+        assertFalse(PendingControls.matches(10_000_000L, 10_300_000L));
+        assertFalse(PendingControls.matches(400, 380));
+        assertFalse(PendingControls.matches(1.8f, 2.0f));
+    }
+
+    @Test
+    public void matches_mixedNumberTypes() {
+        assertTrue(PendingControls.matches(100, 100L));
+        assertTrue(PendingControls.matches(2L, 2.0));
+    }
+
+    @Test
+    public void matches_smallValuesUseAbsoluteTolerance() {
+        assertTrue(PendingControls.matches(0, 0.0005));
+        assertFalse(PendingControls.matches(0, 0.01));
+    }
+}
@@ -1,3 +1,5 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
 type Camera2Options = {
   x?: number;
   y?: number;
@@ -6,6 +8,143 @@ type Camera2Options = {
   paddingBottom?: number;
   toBack?: boolean;
   lockAndroidOrientation?: boolean;
+  sensorCrop?: boolean;
+  zslMemoryBudgetMb?: number;
+};
+
+type EncoderQueueMetrics = {
+  queued: number;
+  active: number;
+  completed: number;
+  maxQueued: number;
+};
+
+type EncoderMetrics = {
+  threads: number;
+  maxPendingPictures: number;
+  pendingPictures: number;
+  rejectedPictures: number;
+  thumbnail: EncoderQueueMetrics;
+  picture: EncoderQueueMetrics;
+  batch: EncoderQueueMetrics;
+};
+
+type ThumbnailCacheMetrics = {
+  memoryHits: number;
+  diskHits: number;
+  misses: number;
+  evictions: number;
+  memorySize: number;
+  memoryBudget: number;
+  diskSize: number;
+  diskBudget: number;
+};
+
+type ExifCacheMetrics = {
+  hits: number;
+  misses: number;
+  entries: number;
+};
+
+type ExifData = {
+  iso: number | null;
+  shutterSpeed: number | null;
+  aperture: number | null;
+  focalLength: number | null;
+  orientation: number | null;
+  dateTime: string | null;
+};
+
+type CatalogEntry = {
+  id: number;
+  path: string;
+  thumbnailPath: string | null;
+  size: number;
+  capturedAt: number;
+  iso: number | null;
+  shutterSpeed: number | null;
+  aperture: number | null;
+  focalLength: number | null;
+  burstId: string | null;
+};
+
+type LockStage = 'af' | 'ae';
+
+type CaptureStage =
+  | 'afTriggered'
+  | 'afLocked'
+  | 'precaptureStarted'
+  | 'precaptureDone'
+  | 'stillSubmitted'
+  | 'captureCompleted'
+  | 'imageAvailable'
+  | 'decoded'
+  | 'cropped'
+  | 'encoded'
+  | 'exifBuilt'
+  | 'written'
+  | 'fileClosed';
+
+type CaptureTimings = Partial<Record<CaptureStage, number>> & {
+  total: number;
+};
+
+type LatencyPercentiles = {
+  count: number;
+  p50: number;
+  p95: number;
+  p99: number;
+};
+
+type ControlMetrics = {
+  updates: number;
+  submitted: number;
+  coalesced: number;
+};
+
+type CaptureMetrics = {
+  captures: number;
+  window: number;
+  stages: Partial<Record<CaptureStage, LatencyPercentiles>>;
+  total: LatencyPercentiles;
+};
+
+type BurstResult = {
+  burstId: string;
+  captureIds: number[];
+  captured: number;
+  dropped: number;
+  fps: number;
+  durationMs: number;
+  timedOut: LockStage[];
+};
+
+type CaptureEvent = {
+  captureId: number;
+  burstId?: string;
+};
+
+type ShutterEvent = CaptureEvent & {
+  shutterLagMs: number;
+};
+
+type JpegAvailableEvent = CaptureEvent & {
+  size: number;
+};
+
+type FileWrittenEvent = CaptureEvent & {
+  size: number;
+  path: string;
+};
+
+type ControlsAppliedEvent = {
+  sequence: number;
+  frameNumber: number;
+  latencyFrames: number | null;
+  latencyMs: number;
+  shutterSpeed: number | null;
+  iso: number | null;
+  aperture: number | null;
 };
 
 export interface Camera2Plugin {
@@ -17,24 +156,98 @@ export interface Camera2Plugin {
     thumbnailWidth?: number;
     thumbnailHeight?: number;
     thumbnailQuality?: number;
-  }): Promise<void>;
+    losslessCrop?: boolean;
+    /**
+     * Save the frame closest to the shutter press. On cameras that cannot
+     * reprocess, the frame is taken from the viewfinder stream and the picture
+     * is no larger than the preview, at most 1920x1080: check `width` and
+     * `height` in the result.
+     */
+    zsl?: boolean;
+    thumbnailSource?: 'picture' | 'preview';
+    afTimeoutMs?: number;
+    aeTimeoutMs?: number;
+  }): Promise<{
+    captureId: number;
+    size: number;
+    /** Size of the saved picture once displayed, -1 if unknown */
+    width: number;
+    height: number;
+    shutterLagMs: number;
+    fastPath: boolean;
+    timedOut: LockStage[];
+    timings: CaptureTimings;
+  }>;
+  captureBurst(options: {
+    count: number;
+    picturePathPattern: string;
+    thumbnailPathPattern?: string;
+    thumbnailWidth?: number;
+    thumbnailHeight?: number;
+    thumbnailQuality?: number;
+    losslessCrop?: boolean;
+    afTimeoutMs?: number;
+    aeTimeoutMs?: number;
+  }): Promise<BurstResult>;
+  captureBracket(options: {
+    type: 'exposure' | 'iso' | 'focus';
+    offsets: number[];
+    picturePathPattern: string;
+    thumbnailPathPattern?: string;
+    thumbnailWidth?: number;
+    thumbnailHeight?: number;
+    thumbnailQuality?: number;
+    losslessCrop?: boolean;
+    afTimeoutMs?: number;
+    aeTimeoutMs?: number;
+  }): Promise<BurstResult>;
+  getEncoderMetrics(): Promise<EncoderMetrics>;
+  getCaptureMetrics(): Promise<CaptureMetrics>;
+  getControlMetrics(): Promise<ControlMetrics>;
+
+  lock3A(options?: {
+    afTimeoutMs?: number;
+    aeTimeoutMs?: number;
+  }): Promise<{ timedOut: LockStage[] }>;
+  unlock3A(): Promise<void>;
 
   setViewFinderSize(options: { width: number; height: number }): Promise<void>;
 
+  getFocusRange(): Promise<{ value: [min: number, max: number] | null }>;
+  setFocus(options: { value: number }): Promise<{ sequence: number }>;
+
   getShutterSpeedRange(): Promise<{ value: [min: number, max: number] | null }>;
-  setShutterSpeed(options: { value: number }): Promise<void>;
+  setShutterSpeed(options: { value: number }): Promise<{ sequence: number }>;
 
   getApertureRange(): Promise<{ value: [min: number, max: number] | null }>;
-  setAperture(options: { value: number }): Promise<void>;
+  setAperture(options: { value: number }): Promise<{ sequence: number }>;
 
   getIsoRange(): Promise<{ value: [min: number, max: number] | null }>;
-  setIso(options: { value: number }): Promise<void>;
+  setIso(options: { value: number }): Promise<{ sequence: number }>;
 
   getExposureCompensationInfo(): Promise<{
     range: [min: number, max: number] | null;
     step: number;
   }>;
-  setExposureCompensation(options: { value: number }): Promise<void>;
+  setExposureCompensation(options: { value: number }): Promise<{ sequence: number }>;
+  setManualControls(options: {
+    shutterSpeed?: number;
+    iso?: number;
+    aperture?: number;
+    exposureCompensation?: number;
+    focus?: number;
+  }): Promise<{ sequence: number; frameNumber: number }>;
+
+  getCapabilities(): Promise<{
+    focus: [min: number, max: number];
+    shutterSpeed: [min: number, max: number] | null;
+    aperture: number[] | null;
+    iso: [min: number, max: number] | null;
+    exposureCompensation: {
+      range: [min: number, max: number] | null;
+      step: number;
+    };
+  }>;
 
   openPIP(options: { width: number; height: number; x: number; y: number; }): Promise<void>;
   closePIP(): Promise<void>;
@@ -43,15 +256,66 @@ export interface Camera2Plugin {
   setPIPPosition(options: { x: number; y: number }): Promise<void>;
 
   pictureToThumbnail(options: {
-    picture: string;
+    picture?: string;
+    path?: string;
     width: number;
     height: number;
     quality?: number;
   }): Promise<{ thumbnail: string }>;
-  getExifData(options: { path: string }): Promise<{
-    iso: number | null;
-    shutterSpeed: number | null;
-    aperture: number | null;
-    focalLength: number | null;
+  configureThumbnailCache(options: {
+    memoryBudgetMb?: number;
+    diskBudgetMb?: number;
+  }): Promise<void>;
+  getThumbnailCacheMetrics(): Promise<ThumbnailCacheMetrics>;
+  clearThumbnailCache(): Promise<void>;
+  thumbnailsFromFiles(options: {
+    items: {
+      path: string;
+      width: number;
+      height: number;
+      quality?: number;
+      outPath: string;
+    }[];
+  }): Promise<{
+    items: {
+      path: string;
+      outPath: string;
+      durationMs: number;
+      error?: string;
+    }[];
+    durationMs: number;
+  }>;
+  getExifData(options: { path: string }): Promise<ExifData>;
+  queryCaptures(options?: {
+    limit?: number;
+    offset?: number;
+    capturedAfter?: number;
+    capturedBefore?: number;
+    minIso?: number;
+    maxIso?: number;
+    burstId?: string;
+    order?: 'asc' | 'desc';
+  }): Promise<{ items: CatalogEntry[]; total: number }>;
+  getExifDataBatch(options: { paths: string[] }): Promise<{
+    items: { path: string; exif?: ExifData; error?: string }[];
   }>;
+  getExifCacheMetrics(): Promise<ExifCacheMetrics>;
+
+  addListener(
+    eventName: 'shutter',
+    listenerFunc: (event: ShutterEvent) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'jpegAvailable',
+    listenerFunc: (event: JpegAvailableEvent) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'thumbnailWritten' | 'pictureWritten',
+    listenerFunc: (event: FileWrittenEvent) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'controlsApplied',
+    listenerFunc: (event: ControlsAppliedEvent) => void,
+  ): Promise<PluginListenerHandle>;
+  removeAllListeners(): Promise<void>;
 }
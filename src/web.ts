@@ -15,9 +15,20 @@ export class Camera2Web extends WebPlugin implements Camera2Plugin {
   start = noop('start');
   stop = noop('stop');
   capture = noop('capture');
+  captureBurst = noop('captureBurst');
+  captureBracket = noop('captureBracket');
+  getEncoderMetrics = noop('getEncoderMetrics');
+  getCaptureMetrics = noop('getCaptureMetrics');
+  getControlMetrics = noop('getControlMetrics');
+
+  lock3A = noop('lock3A');
+  unlock3A = noop('unlock3A');
 
   setViewFinderSize = noop('setViewFinderSize');
 
+  getFocusRange = noop('getFocusRange');
+  setFocus = noop('setFocus');
+
   getShutterSpeedRange = noop('getShutterSpeedRange');
   setShutterSpeed = noop('setShutterSpeed');
 
@@ -28,7 +39,9 @@ export class Camera2Web extends WebPlugin implements Camera2Plugin {
   setIso = noop('setIso');
 
   getExposureCompensationInfo = noop('getExposureCompensationInfo');
+  getCapabilities = noop('getCapabilities');
   setExposureCompensation = noop('setExposureCompensation');
+  setManualControls = noop('setManualControls');
 
   openPIP = noop('openPIP');
   closePIP = noop('closePIP');
@@ -37,5 +50,12 @@ export class Camera2Web extends WebPlugin implements Camera2Plugin {
   setPIPPosition = noop('setPIPPosition');
 
   pictureToThumbnail = noop('pictureToThumbnail');
+  configureThumbnailCache = noop('configureThumbnailCache');
+  getThumbnailCacheMetrics = noop('getThumbnailCacheMetrics');
+  clearThumbnailCache = noop('clearThumbnailCache');
+  thumbnailsFromFiles = noop('thumbnailsFromFiles');
   getExifData = noop('getExifData');
+  getExifDataBatch = noop('getExifDataBatch');
+  getExifCacheMetrics = noop('getExifCacheMetrics');
+  queryCaptures = noop('queryCaptures');
 }